@@ -0,0 +1,565 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.jake.fss.exceptions.FileTooLargeException;
+
+/**
+ * Non-blocking access to the files of a {@link FSService}: every operation
+ * returns at once with a {@link CompletableFuture}. Reads and writes of
+ * buffers go through an {@link AsynchronousFileChannel}; everything else
+ * runs the blocking {@link FSService} method on the I/O threads of this
+ * facade. Failures complete the future exceptionally with the exception
+ * the {@link FSService} method would have thrown.
+ * <p>
+ * Each {@link Operation} has its own limit of operations running at once
+ * (see {@link #setConcurrencyLimit(Operation, int)}). Operations over the
+ * limit wait in line without occupying a thread, so a client copying many
+ * large files only delays the other copies, not the reads, as long as the
+ * limit leaves I/O threads free. All operations start on the I/O threads;
+ * the channel reads and writes complete on threads of their own, which
+ * blocking calls never occupy.
+ * </p>
+ * 
+ * @author johannes
+ */
+public class AsyncFSService {
+
+	private static final Logger log = Logger.getLogger(AsyncFSService.class);
+
+	public static final int DEFAULT_CONCURRENCY_LIMIT = 4;
+
+	public enum Operation {
+		READ, WRITE, COPY, MOVE, DELETE, HASH, LIST
+	}
+
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final FSService fss;
+
+	private final ExecutorService executor;
+
+	/** completes the channel reads and writes; never runs blocking calls */
+	private final ExecutorService channelExecutor;
+
+	private final Map<Operation, Limiter> limiters = new EnumMap<Operation, Limiter>(
+			Operation.class);
+
+	/**
+	 * @param threads
+	 *            number of I/O threads, and of threads completing channel
+	 *            reads and writes
+	 */
+	public AsyncFSService(FSService fss, int threads) {
+		this.fss = fss;
+		final int number = poolNumber.incrementAndGet();
+		this.executor = Executors.newFixedThreadPool(threads, threadFactory(
+				"AsyncFSService-" + number + "-"));
+		this.channelExecutor = Executors.newFixedThreadPool(threads,
+				threadFactory("AsyncFSService-" + number + "-channel-"));
+		for (Operation op : EnumSet.allOf(Operation.class))
+			limiters.put(op, new Limiter(DEFAULT_CONCURRENCY_LIMIT, executor));
+	}
+
+	private static ThreadFactory threadFactory(final String prefix) {
+		return new ThreadFactory() {
+
+			private int n = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + (++n));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * How many operations of this type may run at once. Defaults to
+	 * {@link #DEFAULT_CONCURRENCY_LIMIT}.
+	 */
+	public void setConcurrencyLimit(Operation op, int limit) {
+		if (limit < 1)
+			throw new IllegalArgumentException("limit must be at least 1");
+		limiters.get(op).setLimit(limit);
+	}
+
+	public int getConcurrencyLimit(Operation op) {
+		return limiters.get(op).getLimit();
+	}
+
+	/**
+	 * @return number of operations of this type running right now
+	 */
+	public int getRunning(Operation op) {
+		return limiters.get(op).getRunning();
+	}
+
+	/**
+	 * @return number of operations of this type waiting for others to finish
+	 */
+	public int getWaiting(Operation op) {
+		return limiters.get(op).getWaiting();
+	}
+
+	/**
+	 * stops the I/O threads; operations not yet started fail
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		channelExecutor.shutdown();
+	}
+
+	/**
+	 * Runs operations up to a limit, queueing the rest. Operations are
+	 * started on the executor, also when one finishing elsewhere (on a
+	 * channel thread, say) lets the next one start.
+	 */
+	static class Limiter {
+
+		private final Queue<Start<?>> waiting = new ArrayDeque<Start<?>>();
+
+		private final Executor executor;
+
+		private int limit;
+
+		private int running = 0;
+
+		Limiter(int limit, Executor executor) {
+			this.limit = limit;
+			this.executor = executor;
+		}
+
+		synchronized int getLimit() {
+			return limit;
+		}
+
+		synchronized int getRunning() {
+			return running;
+		}
+
+		synchronized int getWaiting() {
+			return waiting.size();
+		}
+
+		void setLimit(int limit) {
+			synchronized (this) {
+				this.limit = limit;
+			}
+			startWaiting();
+		}
+
+		/**
+		 * @param op
+		 *            starts the operation, on the executor
+		 */
+		<T> CompletableFuture<T> submit(Callable<CompletableFuture<T>> op) {
+			Start<T> start = new Start<T>(op);
+			synchronized (this) {
+				if (running >= limit) {
+					waiting.add(start);
+					return start.result;
+				}
+				running++;
+			}
+			execute(start);
+			return start.result;
+		}
+
+		private void execute(Start<?> start) {
+			try {
+				executor.execute(start);
+			} catch (RejectedExecutionException e) {
+				start.result.completeExceptionally(e);
+				release();
+			}
+		}
+
+		private void release() {
+			synchronized (this) {
+				running--;
+			}
+			startWaiting();
+		}
+
+		private void startWaiting() {
+			while (true) {
+				Start<?> next;
+				synchronized (this) {
+					if (running >= limit || waiting.isEmpty())
+						return;
+					next = waiting.poll();
+					running++;
+				}
+				execute(next);
+			}
+		}
+
+		private class Start<T> implements Runnable {
+
+			final Callable<CompletableFuture<T>> op;
+
+			final CompletableFuture<T> result = new CompletableFuture<T>();
+
+			Start(Callable<CompletableFuture<T>> op) {
+				this.op = op;
+			}
+
+			public void run() {
+				CompletableFuture<T> f;
+				try {
+					f = op.call();
+				} catch (Exception e) {
+					f = new CompletableFuture<T>();
+					f.completeExceptionally(e);
+				}
+				f.whenComplete(new BiConsumer<T, Throwable>() {
+
+					public void accept(T value, Throwable e) {
+						release();
+						if (e != null)
+							result.completeExceptionally(unwrap(e));
+						else
+							result.complete(value);
+					}
+				});
+			}
+		}
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		if (e instanceof CompletionException && e.getCause() != null)
+			return e.getCause();
+		return e;
+	}
+
+	/**
+	 * runs a blocking call on the I/O threads
+	 */
+	private <T> CompletableFuture<T> submit(Operation op,
+			final Callable<T> call) {
+		return limiters.get(op).submit(new Callable<CompletableFuture<T>>() {
+
+			public CompletableFuture<T> call() {
+				CompletableFuture<T> f = new CompletableFuture<T>();
+				try {
+					f.complete(call.call());
+				} catch (Throwable e) {
+					f.completeExceptionally(e);
+				}
+				return f;
+			}
+		});
+	}
+
+	/**
+	 * @return the whole content of the file, ready to be read
+	 */
+	public CompletableFuture<ByteBuffer> readFile(final String relpath) {
+		return limiters.get(Operation.READ).submit(
+				new Callable<CompletableFuture<ByteBuffer>>() {
+
+					public CompletableFuture<ByteBuffer> call()
+							throws Exception {
+						final AsynchronousFileChannel channel = openForReading(relpath);
+						long size;
+						try {
+							size = channel.size();
+						} catch (IOException e) {
+							close(channel);
+							throw e;
+						}
+						if (size > Integer.MAX_VALUE) {
+							close(channel);
+							throw new FileTooLargeException();
+						}
+						final ByteBuffer dst = ByteBuffer.allocate((int) size);
+						return read(channel, dst, 0, 0).thenApply(
+								new Function<Integer, ByteBuffer>() {
+
+									public ByteBuffer apply(Integer n) {
+										dst.flip();
+										return dst;
+									}
+								});
+					}
+				});
+	}
+
+	/**
+	 * Reads a part of the file into dst, from its position up to its limit or
+	 * the end of the file.
+	 *
+	 * @return number of bytes read, -1 if offset is at or after the end of
+	 *         the file
+	 */
+	public CompletableFuture<Integer> readFileRange(final String relpath,
+			final long offset, final ByteBuffer dst) {
+		return limiters.get(Operation.READ).submit(
+				new Callable<CompletableFuture<Integer>>() {
+
+					public CompletableFuture<Integer> call() throws Exception {
+						return read(openForReading(relpath), dst, offset, 0);
+					}
+				});
+	}
+
+	private AsynchronousFileChannel openForReading(String relpath)
+			throws Exception {
+		File f = fss.convertToAbsPath(relpath);
+		/* same exceptions as the blocking version */
+		fss.openFileChannel(relpath).close();
+		return AsynchronousFileChannel.open(f.toPath(), EnumSet
+				.of(StandardOpenOption.READ), channelExecutor);
+	}
+
+	/**
+	 * reads until dst is full or the file ends, then closes the channel
+	 */
+	private CompletableFuture<Integer> read(
+			final AsynchronousFileChannel channel, final ByteBuffer dst,
+			final long offset, final int done) {
+		final CompletableFuture<Integer> result = new CompletableFuture<Integer>();
+		if (!dst.hasRemaining()) {
+			close(channel);
+			result.complete(done);
+			return result;
+		}
+		channel.read(dst, offset + done, null,
+				new CompletionHandler<Integer, Void>() {
+
+					public void completed(Integer n, Void attachment) {
+						if (n < 0) {
+							close(channel);
+							result.complete(done == 0 ? -1 : done);
+						} else {
+							chain(read(channel, dst, offset, done + n), result);
+						}
+					}
+
+					public void failed(Throwable e, Void attachment) {
+						close(channel);
+						result.completeExceptionally(e);
+					}
+				});
+		return result;
+	}
+
+	/**
+	 * Writes the remaining content of the buffer as the new content of the
+	 * file, creating subdirectories if needed. Atomically, if the
+	 * {@link FSService} writes atomically.
+	 */
+	public CompletableFuture<Void> writeFile(final String relpath,
+			final ByteBuffer content) {
+		return limiters.get(Operation.WRITE).submit(
+				new Callable<CompletableFuture<Void>>() {
+
+					public CompletableFuture<Void> call() throws Exception {
+						final File target = fss.convertToAbsPath(relpath);
+						FSService.prepareDestination(target);
+						final boolean atomic = fss.isAtomicWrites();
+						File replaced = atomic ? AtomicFileOutput
+								.replaceable(target) : null;
+						final File f = replaced == null ? target : replaced;
+						/* hard links: copy into it, don't replace it */
+						final boolean copyBack = atomic && replaced == null;
+						final File tmp = atomic ? AtomicFileOutput
+								.createTempFile(f) : null;
+						final AsynchronousFileChannel channel;
+						try {
+							channel = AsynchronousFileChannel.open((tmp == null ? f
+									: tmp).toPath(), EnumSet.of(
+									StandardOpenOption.WRITE,
+									StandardOpenOption.CREATE,
+									StandardOpenOption.TRUNCATE_EXISTING),
+									channelExecutor);
+						} catch (IOException e) {
+							if (tmp != null)
+								tmp.delete();
+							throw e;
+						} catch (RuntimeException e) {
+							if (tmp != null)
+								tmp.delete();
+							throw e;
+						}
+						final CompletableFuture<Void> result = new CompletableFuture<Void>();
+						/* force and replace block: not on channel threads */
+						write(channel, content, 0).whenCompleteAsync(
+								new BiConsumer<Void, Throwable>() {
+
+									public void accept(Void v, Throwable e) {
+										try {
+											if (e == null && fss.isSyncWrites())
+												channel.force(true);
+											channel.close();
+											if (e == null && copyBack)
+												AtomicFileOutput.copyInto(tmp,
+														f, fss.isSyncWrites());
+											else if (e == null && tmp != null)
+												AtomicFileOutput.replace(tmp, f);
+										} catch (IOException ex) {
+											if (e == null)
+												e = ex;
+										}
+										if (tmp != null)
+											tmp.delete();
+										fss.invalidateIndex(target);
+										if (e != null)
+											result.completeExceptionally(e);
+										else
+											result.complete(null);
+									}
+								}, executor);
+						return result;
+					}
+				});
+	}
+
+	private CompletableFuture<Void> write(
+			final AsynchronousFileChannel channel, final ByteBuffer src,
+			final long position) {
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		if (!src.hasRemaining()) {
+			result.complete(null);
+			return result;
+		}
+		channel.write(src, position, null,
+				new CompletionHandler<Integer, Void>() {
+
+					public void completed(Integer n, Void attachment) {
+						chain(write(channel, src, position + n), result);
+					}
+
+					public void failed(Throwable e, Void attachment) {
+						result.completeExceptionally(e);
+					}
+				});
+		return result;
+	}
+
+	private static <T> void chain(CompletableFuture<T> from,
+			final CompletableFuture<T> to) {
+		from.whenComplete(new BiConsumer<T, Throwable>() {
+
+			public void accept(T value, Throwable e) {
+				if (e != null)
+					to.completeExceptionally(unwrap(e));
+				else
+					to.complete(value);
+			}
+		});
+	}
+
+	private static void close(AsynchronousFileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("closing channel failed", e);
+		}
+	}
+
+	/**
+	 * see {@link FSService#writeFileStreamWithHash(String, InputStream)}
+	 */
+	public CompletableFuture<WriteResult> writeFileStream(
+			final String relpath, final InputStream source) {
+		return submit(Operation.WRITE, new Callable<WriteResult>() {
+
+			public WriteResult call() throws Exception {
+				return fss.writeFileStreamWithHash(relpath, source);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> copyFile(final String from,
+			final String to) {
+		return submit(Operation.COPY, new Callable<Boolean>() {
+
+			public Boolean call() throws Exception {
+				return fss.copyFile(from, to);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> moveFile(final String from,
+			final String to) {
+		return submit(Operation.MOVE, new Callable<Boolean>() {
+
+			public Boolean call() throws Exception {
+				return fss.moveFile(from, to);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> deleteFile(final String relpath) {
+		return submit(Operation.DELETE, new Callable<Boolean>() {
+
+			public Boolean call() throws Exception {
+				return fss.deleteFile(relpath);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> deleteFolder(final String relpath) {
+		return submit(Operation.DELETE, new Callable<Boolean>() {
+
+			public Boolean call() throws Exception {
+				return fss.deleteFolder(relpath);
+			}
+		});
+	}
+
+	public CompletableFuture<HashValue> calculateHashOverFile(
+			final String relpath) {
+		return submit(Operation.HASH, new Callable<HashValue>() {
+
+			public HashValue call() throws Exception {
+				return fss.calculateHashOverFile(relpath);
+			}
+		});
+	}
+
+	public CompletableFuture<List<String>> listFolder(final String relpath) {
+		return submit(Operation.LIST, new Callable<List<String>>() {
+
+			public List<String> call() throws Exception {
+				return fss.listFolder(relpath);
+			}
+		});
+	}
+
+	public CompletableFuture<List<String>> recursiveListFiles() {
+		return submit(Operation.LIST, new Callable<List<String>>() {
+
+			public List<String> call() throws Exception {
+				return fss.recursiveListFiles();
+			}
+		});
+	}
+}
@@ -0,0 +1,217 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a file. In atomic mode, the content goes to a temporary file next
+ * to it (see {@link FileUtils#isTempFile(String)}), which replaces the file
+ * on {@link #commit()}: readers see either the old or the complete new
+ * content. A file that cannot be replaced without cutting off its further
+ * hard links gets the complete content copied into it instead; the file
+ * is still not touched before the content is complete. Usage:
+ * 
+ * <pre>
+ * AtomicFileOutput out = new AtomicFileOutput(f, atomic, sync);
+ * try {
+ * 	out.getStream().write(...);
+ * 	out.commit();
+ * } finally {
+ * 	out.abort();
+ * }
+ * </pre>
+ * 
+ * @author johannes
+ */
+class AtomicFileOutput {
+
+	private static final Logger log = Logger.getLogger(AtomicFileOutput.class);
+
+	private final File target;
+
+	private final File tmp;
+
+	/* the target has further hard links: copy into it, don't replace it */
+	private final boolean copyBack;
+
+	private final boolean sync;
+
+	private final FileOutputStream stream;
+
+	private boolean done = false;
+
+	/**
+	 * @param atomic
+	 *            write to a temporary file first
+	 * @param sync
+	 *            force the content to the disk before the file is replaced
+	 */
+	AtomicFileOutput(File target, boolean atomic, boolean sync)
+			throws IOException {
+		File replaced = atomic ? replaceable(target) : null;
+		this.target = replaced == null ? target : replaced;
+		this.copyBack = atomic && replaced == null;
+		this.sync = sync;
+		this.tmp = atomic ? createTempFile(this.target) : null;
+		this.stream = new FileOutputStream(getFile());
+	}
+
+	FileOutputStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * @return where the content is being written to
+	 */
+	File getFile() {
+		return tmp == null ? target : tmp;
+	}
+
+	/**
+	 * @return the attributes of the file written, which are kept when it
+	 *         replaces the target
+	 */
+	BasicFileAttributes commit() throws IOException {
+		if (sync)
+			stream.getFD().sync();
+		stream.close();
+		if (copyBack) {
+			/* from here on, the temporary file is the only complete copy */
+			done = true;
+			try {
+				copyInto(tmp, target, sync);
+			} catch (IOException e) {
+				log.error("couldn't write " + target + ", the content is in "
+						+ tmp, e);
+				throw e;
+			}
+			if (!tmp.delete())
+				log.warn("couldn't delete " + tmp);
+			return Files.readAttributes(target.toPath(),
+					BasicFileAttributes.class);
+		}
+		BasicFileAttributes attr = Files.readAttributes(getFile().toPath(),
+				BasicFileAttributes.class);
+		if (tmp != null)
+			replace(tmp, target);
+		done = true;
+		return attr;
+	}
+
+	/**
+	 * @return the file a temporary file may replace when writing the target:
+	 *         the target itself, or the file a symbolic link points to. Null
+	 *         if the file has further hard links, which a replacement would
+	 *         cut off, so that the content must be copied into it.
+	 */
+	static File replaceable(File target) throws IOException {
+		Path path = target.toPath();
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+			return target;
+		if (Files.isSymbolicLink(path)) {
+			if (!Files.exists(path))
+				return null;
+			path = path.toRealPath();
+		}
+		try {
+			Object links = Files.getAttribute(path, "unix:nlink");
+			if (links instanceof Integer && (Integer) links > 1)
+				return null;
+		} catch (UnsupportedOperationException e) {
+		} catch (IllegalArgumentException e) {
+		}
+		return path.toFile();
+	}
+
+	/**
+	 * overwrites the content of the target in place, keeping its links
+	 */
+	static void copyInto(File from, File target, boolean sync)
+			throws IOException {
+		FileOutputStream out = new FileOutputStream(target);
+		try {
+			Files.copy(from.toPath(), out);
+			if (sync)
+				out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return a new, empty temporary file next to the target
+	 */
+	static File createTempFile(File target) throws IOException {
+		return File.createTempFile("." + target.getName() + ".",
+				FileUtils.TEMP_SUFFIX, target.getParentFile());
+	}
+
+	/**
+	 * moves the temporary file over the target, keeping the permissions,
+	 * owner and group of the target
+	 */
+	static void replace(File tmp, File target) throws IOException {
+		copyPermissions(target, tmp);
+		try {
+			Files.move(tmp.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void copyPermissions(File from, File to) {
+		if (!from.exists())
+			return;
+		PosixFileAttributeView view = Files.getFileAttributeView(from
+				.toPath(), PosixFileAttributeView.class);
+		if (view == null)
+			return;
+		try {
+			PosixFileAttributes attr = view.readAttributes();
+			Files.setPosixFilePermissions(to.toPath(), attr.permissions());
+			PosixFileAttributeView toView = Files.getFileAttributeView(to
+					.toPath(), PosixFileAttributeView.class);
+			PosixFileAttributes toAttr = toView.readAttributes();
+			if (!attr.owner().equals(toAttr.owner()))
+				toView.setOwner(attr.owner());
+			if (!attr.group().equals(toAttr.group()))
+				toView.setGroup(attr.group());
+		} catch (IOException e) {
+			log.debug("couldn't copy permissions to " + to, e);
+		}
+	}
+
+	/**
+	 * closes the stream and deletes the temporary file, unless committed
+	 */
+	void abort() {
+		if (done)
+			return;
+		done = true;
+		close(stream);
+		if (tmp != null && !tmp.delete())
+			log.warn("couldn't delete " + tmp);
+	}
+
+	private static void close(OutputStream out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.jakeapp.jake.fss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The changes found by one scan (or collected in one coalescing window), in
+ * the order they were found. At most one per file if coalescing is on.
+ * Immutable.
+ * 
+ * @author johannes
+ * @see IChangeSetListener
+ */
+public class ChangeSet implements Iterable<FileChange> {
+
+	private final long sequence;
+
+	private final long startedAt;
+
+	private final long completedAt;
+
+	private final List<FileChange> changes;
+
+	/**
+	 * @param sequence
+	 *            number of the change-set, counting up from 1 per project
+	 * @param startedAt
+	 *            when the first change was reported
+	 * @param completedAt
+	 *            when the set was complete
+	 */
+	public ChangeSet(long sequence, long startedAt, long completedAt,
+			List<FileChange> changes) {
+		this.sequence = sequence;
+		this.startedAt = startedAt;
+		this.completedAt = completedAt;
+		this.changes = Collections.unmodifiableList(new ArrayList<FileChange>(
+				changes));
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public long getCompletedAt() {
+		return completedAt;
+	}
+
+	public List<FileChange> getChanges() {
+		return changes;
+	}
+
+	public int size() {
+		return changes.size();
+	}
+
+	public boolean isEmpty() {
+		return changes.isEmpty();
+	}
+
+	public Iterator<FileChange> iterator() {
+		return changes.iterator();
+	}
+
+	@Override
+	public String toString() {
+		return "change-set " + sequence + ": " + changes;
+	}
+}
@@ -0,0 +1,43 @@
+package com.jakeapp.jake.fss;
+
+import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
+
+/**
+ * Passes the changes of a {@link ChangeSet} on to a
+ * {@link IFileModificationListener} one by one. Equal to every adapter of
+ * the same listener.
+ * 
+ * @author johannes
+ */
+public class ChangeSetAdapter implements IChangeSetListener {
+
+	private final IFileModificationListener listener;
+
+	public ChangeSetAdapter(IFileModificationListener listener) {
+		this.listener = listener;
+	}
+
+	public IFileModificationListener getListener() {
+		return listener;
+	}
+
+	public void changesHappened(ChangeSet changes) {
+		for (FileChange c : changes) {
+			if (c.getAction() == ModifyActions.MOVED)
+				listener.fileMoved(c.getFromRelpath(), c.getRelpath());
+			else
+				listener.fileModified(c.getRelpath(), c.getAction());
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ChangeSetAdapter
+				&& ((ChangeSetAdapter) o).listener.equals(listener);
+	}
+
+	@Override
+	public int hashCode() {
+		return listener.hashCode();
+	}
+}
@@ -0,0 +1,301 @@
+package com.jakeapp.jake.fss;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
+
+/**
+ * Delivers {@link ChangeSet}s to one listener on an executor, in order,
+ * through a bounded queue, so that a slow listener does not hold up the
+ * watcher or the other listeners. What happens when the queue is full is
+ * decided by the {@link OverflowPolicy}.
+ * 
+ * @author johannes
+ */
+public class ChangeSetDispatcher {
+
+	private static final Logger log = Logger
+			.getLogger(ChangeSetDispatcher.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	public enum OverflowPolicy {
+		/**
+		 * the watcher waits until there is room again
+		 */
+		BLOCK,
+		/**
+		 * the change-set is dropped and {@link #isResyncNeeded()} is set:
+		 * the listener has to look at the files itself
+		 */
+		DROP,
+		/**
+		 * everything queued is merged into one change-set with at most one
+		 * change per file (moves become deletions and creations)
+		 */
+		COALESCE
+	}
+
+	private static class Pending {
+
+		final ChangeSet changes;
+
+		/* System.nanoTime() */
+		final long enqueuedAt;
+
+		Pending(ChangeSet changes, long enqueuedAt) {
+			this.changes = changes;
+			this.enqueuedAt = enqueuedAt;
+		}
+	}
+
+	private final IChangeSetListener listener;
+
+	private final int capacity;
+
+	private final OverflowPolicy policy;
+
+	private final Executor executor;
+
+	private final Deque<Pending> queue = new ArrayDeque<Pending>();
+
+	private boolean draining = false;
+
+	private boolean closed = false;
+
+	private volatile boolean resyncNeeded = false;
+
+	/* metrics, guarded by this */
+	private int maxDepth = 0;
+
+	private long delivered = 0;
+
+	private long dropped = 0;
+
+	private long coalesced = 0;
+
+	private long totalLatency = 0;
+
+	private long maxLatency = 0;
+
+	/**
+	 * @param capacity
+	 *            change-sets that may be waiting
+	 * @param executor
+	 *            runs the deliveries; one at a time for this listener
+	 */
+	public ChangeSetDispatcher(IChangeSetListener listener, int capacity,
+			OverflowPolicy policy, Executor executor) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity " + capacity);
+		this.listener = listener;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.executor = executor;
+	}
+
+	public IChangeSetListener getListener() {
+		return listener;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * queues the change-set for the listener. Blocks if the queue is full and
+	 * the policy is {@link OverflowPolicy#BLOCK}.
+	 */
+	public void dispatch(ChangeSet changes) {
+		synchronized (this) {
+			if (closed)
+				return;
+			if (queue.size() >= capacity) {
+				switch (policy) {
+				case BLOCK:
+					try {
+						while (queue.size() >= capacity && !closed)
+							wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						dropped++;
+						resyncNeeded = true;
+						return;
+					}
+					if (closed)
+						return;
+					break;
+				case DROP:
+					dropped++;
+					resyncNeeded = true;
+					return;
+				case COALESCE:
+					long enqueuedAt = queue.peekFirst().enqueuedAt;
+					List<ChangeSet> sets = new ArrayList<ChangeSet>();
+					for (Pending p : queue)
+						sets.add(p.changes);
+					sets.add(changes);
+					coalesced += queue.size();
+					queue.clear();
+					queue.add(new Pending(merge(sets), enqueuedAt));
+					return;
+				}
+			}
+			queue.add(new Pending(changes, System.nanoTime()));
+			maxDepth = Math.max(maxDepth, queue.size());
+			if (draining)
+				return;
+			draining = true;
+		}
+		executor.execute(new Runnable() {
+
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	private void drain() {
+		while (true) {
+			Pending p;
+			synchronized (this) {
+				p = queue.poll();
+				if (p == null || closed) {
+					draining = false;
+					return;
+				}
+				notifyAll();
+			}
+			try {
+				listener.changesHappened(p.changes);
+			} catch (RuntimeException e) {
+				log.warn("listener " + listener + " failed on " + p.changes,
+						e);
+			}
+			long latency = System.nanoTime() - p.enqueuedAt;
+			synchronized (this) {
+				delivered++;
+				totalLatency += latency;
+				maxLatency = Math.max(maxLatency, latency);
+			}
+		}
+	}
+
+	/**
+	 * merges change-sets into one with at most one change per file, like the
+	 * {@link EventCoalescer} does
+	 */
+	static ChangeSet merge(List<ChangeSet> sets) {
+		Map<String, ModifyActions> merged = new LinkedHashMap<String, ModifyActions>();
+		for (ChangeSet set : sets) {
+			for (FileChange c : set) {
+				if (c.getAction() == ModifyActions.MOVED) {
+					merge(merged, c.getFromRelpath(), ModifyActions.DELETED);
+					merge(merged, c.getRelpath(), ModifyActions.CREATED);
+				} else {
+					merge(merged, c.getRelpath(), c.getAction());
+				}
+			}
+		}
+		List<FileChange> changes = new ArrayList<FileChange>(merged.size());
+		for (Map.Entry<String, ModifyActions> e : merged.entrySet())
+			changes.add(new FileChange(e.getKey(), e.getValue()));
+		ChangeSet first = sets.get(0), last = sets.get(sets.size() - 1);
+		return new ChangeSet(last.getSequence(), first.getStartedAt(), last
+				.getCompletedAt(), changes);
+	}
+
+	private static void merge(Map<String, ModifyActions> merged,
+			String relpath, ModifyActions action) {
+		ModifyActions m = EventCoalescer.merge(merged.get(relpath), action);
+		if (m == null)
+			merged.remove(relpath);
+		else
+			merged.put(relpath, m);
+	}
+
+	/**
+	 * drops everything queued and releases a blocked watcher; nothing is
+	 * delivered afterwards
+	 */
+	public synchronized void close() {
+		closed = true;
+		queue.clear();
+		notifyAll();
+	}
+
+	/**
+	 * @return whether change-sets were dropped since the last
+	 *         {@link #clearResyncNeeded()}
+	 */
+	public boolean isResyncNeeded() {
+		return resyncNeeded;
+	}
+
+	/**
+	 * to be called by the listener before it looks at the files itself
+	 */
+	public void clearResyncNeeded() {
+		resyncNeeded = false;
+	}
+
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	public synchronized int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public synchronized long getDelivered() {
+		return delivered;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * @return number of change-sets merged into others
+	 */
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	/**
+	 * @return average time in milliseconds from queueing a change-set until
+	 *         the listener is done with it
+	 */
+	public synchronized double getAverageLatency() {
+		if (delivered == 0)
+			return 0;
+		return (double) totalLatency / delivered / 1e6;
+	}
+
+	/**
+	 * @return longest time in milliseconds from queueing a change-set until
+	 *         the listener was done with it
+	 */
+	public synchronized long getMaxLatency() {
+		return TimeUnit.NANOSECONDS.toMillis(maxLatency);
+	}
+
+	@Override
+	public String toString() {
+		return "dispatcher for " + listener + " (" + policy + ", "
+				+ getQueueDepth() + "/" + capacity + " queued)";
+	}
+}
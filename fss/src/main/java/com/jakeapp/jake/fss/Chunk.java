@@ -0,0 +1,57 @@
+package com.jakeapp.jake.fss;
+
+/**
+ * A piece of a file, as cut by the {@link ContentDefinedChunker}.
+ * 
+ * @author johannes
+ */
+public class Chunk {
+
+	private final long offset;
+
+	private final int length;
+
+	private final HashValue hash;
+
+	public Chunk(long offset, int length, HashValue hash) {
+		this.offset = offset;
+		this.length = length;
+		this.hash = hash;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the hash over the content of the chunk
+	 */
+	public HashValue getHash() {
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return offset + "+" + length + ":" + hash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) offset * 31 + length * 17 + hash.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof Chunk))
+			return false;
+		Chunk other = (Chunk) obj;
+		return offset == other.offset && length == other.length
+				&& hash.equals(other.hash);
+	}
+}
@@ -0,0 +1,171 @@
+package com.jakeapp.jake.fss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cuts a stream into chunks at positions that depend on the content only,
+ * so an insertion or deletion changes the chunks around it but not the rest
+ * of the file. Chunks with equal hashes need to be stored or sent only once.
+ * <p>
+ * Boundaries are found with a Gear rolling hash (each byte shifts the hash
+ * left and adds a random value for that byte): a chunk ends where the top
+ * bits of the hash are zero, but not before <code>minSize</code> and at the
+ * latest at <code>maxSize</code>. The boundaries only depend on the sizes,
+ * so all peers must use the same ones.
+ * </p>
+ * <p>
+ * Safe to be shared between threads.
+ * </p>
+ * 
+ * @author johannes
+ */
+public class ContentDefinedChunker {
+
+	public static final int DEFAULT_MIN_SIZE = 2 * 1024;
+
+	public static final int DEFAULT_AVERAGE_SIZE = 8 * 1024;
+
+	public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		/* fixed seed: the boundaries must be the same everywhere */
+		Random r = new Random(0x4a616b65L);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextLong();
+	}
+
+	private final int minSize;
+
+	private final int averageSize;
+
+	private final int maxSize;
+
+	private final long mask;
+
+	public ContentDefinedChunker() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param averageSize
+	 *            expected chunk size, a power of two
+	 */
+	public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+		if (Integer.bitCount(averageSize) != 1)
+			throw new IllegalArgumentException(
+					"averageSize must be a power of two");
+		if (minSize < 0 || minSize > averageSize || averageSize > maxSize)
+			throw new IllegalArgumentException(
+					"sizes must be minSize <= averageSize <= maxSize");
+		this.minSize = minSize;
+		this.averageSize = averageSize;
+		this.maxSize = maxSize;
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		/*
+		 * the high bits depend on the last 64 bytes, the low ones only on the
+		 * last few
+		 */
+		this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getAverageSize() {
+		return averageSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Reads the stream to its end and closes it.
+	 * 
+	 * @return the chunks, in order. An empty stream has no chunks.
+	 */
+	public List<Chunk> chunk(InputStream in) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(HashValue.DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		byte[] buf = new byte[BUFFER_SIZE];
+		final long mask = this.mask;
+		final int minSize = this.minSize;
+		final int maxSize = this.maxSize;
+		/*
+		 * the hash only depends on the last 64 bytes, so there is no need to
+		 * calculate it before that
+		 */
+		final int skip = Math.max(0, minSize - 64);
+		long chunkStart = 0;
+		int chunkLength = 0;
+		long hash = 0;
+		try {
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				int segmentStart = 0;
+				int i = 0;
+				while (i < n) {
+					if (chunkLength < skip) {
+						int step = Math.min(skip - chunkLength, n - i);
+						chunkLength += step;
+						i += step;
+						continue;
+					}
+					/* up to minSize: just hash */
+					int start = i;
+					int end = Math.min(n, i + minSize - chunkLength);
+					for (; i < end; i++)
+						hash = (hash << 1) + GEAR[buf[i] & 0xff];
+					chunkLength += i - start;
+					if (chunkLength < minSize)
+						break;
+					/* then look for a boundary */
+					start = i;
+					end = Math.min(n, i + maxSize - chunkLength);
+					boolean found = false;
+					for (; i < end; i++) {
+						hash = (hash << 1) + GEAR[buf[i] & 0xff];
+						if ((hash & mask) == 0) {
+							i++;
+							found = true;
+							break;
+						}
+					}
+					chunkLength += i - start;
+					if (found || chunkLength >= maxSize) {
+						md.update(buf, segmentStart, i - segmentStart);
+						chunks.add(new Chunk(chunkStart, chunkLength,
+								new HashValue(md.digest())));
+						segmentStart = i;
+						chunkStart += chunkLength;
+						chunkLength = 0;
+						hash = 0;
+					}
+				}
+				md.update(buf, segmentStart, n - segmentStart);
+			}
+		} finally {
+			in.close();
+		}
+		if (chunkLength > 0)
+			chunks.add(new Chunk(chunkStart, chunkLength, new HashValue(md
+					.digest())));
+		return chunks;
+	}
+}
@@ -0,0 +1,243 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Collects modification events and passes them on in windows, with at most
+ * one event per file. A window is closed once no event came in for
+ * <code>quietPeriod</code> milliseconds, or <code>maxLatency</code>
+ * milliseconds after its first event, whichever comes first. Within a
+ * window:
+ * <ul>
+ * <li>CREATED + MODIFIED = CREATED</li>
+ * <li>CREATED + DELETED = nothing</li>
+ * <li>DELETED + CREATED = MODIFIED</li>
+ * <li>MODIFIED + DELETED = DELETED</li>
+ * </ul>
+ * A move is passed on as a move if neither of its files has other events in
+ * the window; otherwise it is taken as DELETED and CREATED. Events are passed
+ * on in the order their files first showed up in the window, on a thread of
+ * the coalescer, followed by {@link IModificationListener#scanCompleted()}.
+ * Windows are passed on one at a time, in order.
+ * 
+ * @author johannes
+ */
+public class EventCoalescer implements IModificationListener {
+
+	private static final Logger log = Logger.getLogger(EventCoalescer.class);
+
+	public static final long DEFAULT_QUIET_PERIOD = 100;
+
+	public static final long DEFAULT_MAX_LATENCY = 1000;
+
+	private final IModificationListener target;
+
+	private final long quietPeriod;
+
+	private final long maxLatency;
+
+	private final Map<File, ModifyActions> pending = new LinkedHashMap<File, ModifyActions>();
+
+	/* pending moves, by destination and by source */
+	private final Map<File, File> moves = new HashMap<File, File>();
+
+	private final Map<File, File> moveSources = new HashMap<File, File>();
+
+	/* System.nanoTime() of the first and last event in the window */
+	private long windowStart;
+
+	private long lastEvent;
+
+	private ScheduledFuture<?> scheduled = null;
+
+	/*
+	 * held by flush() from taking a window to passing it on, so that windows
+	 * are passed on in order; taken before the lock on this
+	 */
+	private final Object delivering = new Object();
+
+	private final ScheduledExecutorService timer;
+
+	public EventCoalescer(IModificationListener target) {
+		this(target, DEFAULT_QUIET_PERIOD, DEFAULT_MAX_LATENCY);
+	}
+
+	/**
+	 * @param target
+	 *            where the merged events go
+	 * @param quietPeriod
+	 *            milliseconds without events that close a window
+	 * @param maxLatency
+	 *            milliseconds after which a window is closed anyway
+	 */
+	public EventCoalescer(IModificationListener target, long quietPeriod,
+			long maxLatency) {
+		this.target = target;
+		this.quietPeriod = quietPeriod;
+		this.maxLatency = Math.max(quietPeriod, maxLatency);
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "EventCoalescer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	public synchronized void fileModified(File file, ModifyActions action) {
+		long now = System.nanoTime();
+		if (pending.isEmpty())
+			windowStart = now;
+		lastEvent = now;
+
+		if (moves.containsKey(file))
+			splitMove(file);
+		if (moveSources.containsKey(file))
+			splitMove(moveSources.get(file));
+		ModifyActions merged = merge(pending.get(file), action);
+		if (merged == null)
+			pending.remove(file);
+		else
+			pending.put(file, merged);
+		schedule(now);
+	}
+
+	public synchronized void fileMoved(File from, File to) {
+		if (pending.containsKey(from) || pending.containsKey(to)
+				|| moveSources.containsKey(from)
+				|| moveSources.containsKey(to)) {
+			fileModified(from, ModifyActions.DELETED);
+			fileModified(to, ModifyActions.CREATED);
+			return;
+		}
+		long now = System.nanoTime();
+		if (pending.isEmpty())
+			windowStart = now;
+		lastEvent = now;
+
+		pending.put(to, ModifyActions.MOVED);
+		moves.put(to, from);
+		moveSources.put(from, to);
+		schedule(now);
+	}
+
+	/**
+	 * ignored: the windows are what is passed on as batches
+	 */
+	public void scanCompleted() {
+	}
+
+	/**
+	 * turns the pending move to the file into DELETED and CREATED
+	 */
+	private void splitMove(File to) {
+		File from = moves.remove(to);
+		moveSources.remove(from);
+		pending.remove(to);
+		pending.put(from, ModifyActions.DELETED);
+		pending.put(to, ModifyActions.CREATED);
+	}
+
+	/**
+	 * @return the one event that has the effect of both, null for none
+	 */
+	static ModifyActions merge(ModifyActions first, ModifyActions then) {
+		if (first == null)
+			return then;
+		switch (then) {
+		case DELETED:
+			return first == ModifyActions.CREATED ? null
+					: ModifyActions.DELETED;
+		case CREATED:
+			return first == ModifyActions.DELETED ? ModifyActions.MODIFIED
+					: first;
+		default:
+			return first == ModifyActions.CREATED ? ModifyActions.CREATED
+					: ModifyActions.MODIFIED;
+		}
+	}
+
+	/**
+	 * (re)schedules closing the window
+	 */
+	private void schedule(long now) {
+		if (timer.isShutdown())
+			return;
+		if (scheduled != null)
+			scheduled.cancel(false);
+		long deadline = Math.min(lastEvent
+				+ TimeUnit.MILLISECONDS.toNanos(quietPeriod), windowStart
+				+ TimeUnit.MILLISECONDS.toNanos(maxLatency));
+		scheduled = timer.schedule(new Runnable() {
+
+			public void run() {
+				flush();
+			}
+		}, Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * passes on everything pending now, after any window still being passed
+	 * on
+	 */
+	public void flush() {
+		synchronized (delivering) {
+			Map<File, ModifyActions> events;
+			Map<File, File> movedFrom;
+			synchronized (this) {
+				if (scheduled != null) {
+					scheduled.cancel(false);
+					scheduled = null;
+				}
+				events = new LinkedHashMap<File, ModifyActions>(pending);
+				movedFrom = new HashMap<File, File>(moves);
+				pending.clear();
+				moves.clear();
+				moveSources.clear();
+			}
+			/* not holding this, so a slow target does not stall the watcher */
+			for (Map.Entry<File, ModifyActions> e : events.entrySet()) {
+				try {
+					if (e.getValue() == ModifyActions.MOVED)
+						target.fileMoved(movedFrom.get(e.getKey()), e
+								.getKey());
+					else
+						target.fileModified(e.getKey(), e.getValue());
+				} catch (RuntimeException ex) {
+					log.warn("listener failed on " + e.getKey(), ex);
+				}
+			}
+			if (!events.isEmpty())
+				target.scanCompleted();
+		}
+	}
+
+	/**
+	 * stops the timer. Pending events are dropped.
+	 */
+	public synchronized void shutdown() {
+		timer.shutdownNow();
+		pending.clear();
+		moves.clear();
+		moveSources.clear();
+	}
+}
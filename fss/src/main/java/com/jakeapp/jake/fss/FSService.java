@@ -7,13 +7,30 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.log4j.Logger;
 
@@ -36,31 +53,349 @@ public class FSService implements IFSService, IModificationListener {
 
 	private static Logger log = Logger.getLogger(FSService.class);
 
+	/* some platforms fail on larger transfers */
+	private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+
 	private ProjectDir rootPath;
 
 	private StreamFileHashCalculator hasher;
 
+	private HashExecutor hashExecutor;
+
+	private boolean atomicWrites = false;
+
+	private boolean syncWrites = false;
+
+	private int hashTreeChunkSize = HashTree.DEFAULT_CHUNK_SIZE;
+
+	private ContentDefinedChunker chunker = new ContentDefinedChunker();
+
+	private HashCache hashCache = new HashCache(HashCache.DEFAULT_CAPACITY);
+
+	private long indexStaleness = 0;
+
 	private FolderWatcher fw;
 
 	private FileLauncher launcher;
 
-	private Set<IFileModificationListener> modificationListener = new HashSet<IFileModificationListener>();
+	private boolean nativeWatching = true;
+
+	private long pollingInterval = FolderWatcher.DEFAULT_POLLING_INTERVAL;
+
+	private boolean trustFolderTimestamps = false;
+
+	private int scanParallelism = 1;
+
+	private File watcherCacheDir = null;
+
+	private long coalesceQuietPeriod = 0;
+
+	private long coalesceMaxLatency = EventCoalescer.DEFAULT_MAX_LATENCY;
+
+	private EventCoalescer coalescer = null;
+
+	private final Map<IChangeSetListener, ChangeSetDispatcher> dispatchers = new ConcurrentHashMap<IChangeSetListener, ChangeSetDispatcher>();
+
+	private int listenerQueueCapacity = ChangeSetDispatcher.DEFAULT_CAPACITY;
+
+	private ChangeSetDispatcher.OverflowPolicy listenerOverflowPolicy = ChangeSetDispatcher.OverflowPolicy.BLOCK;
+
+	private final ExecutorService dispatchExecutor = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "FSService listener dispatch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/* changes of the current scan, see scanCompleted() */
+	private List<FileChange> collectedChanges = new ArrayList<FileChange>();
+
+	private long collectingSince;
+
+	private long changeSetSequence = 0;
+
+	/*
+	 * the last change set if it came when nobody was listening, like the
+	 * changes found on startup; handed to listeners added before the next
+	 */
+	private ChangeSet missedChanges = null;
 
 	public FSService() throws NoSuchAlgorithmException {
+		this(new FileLauncher());
+	}
+
+	/**
+	 * @param launcher
+	 *            null where files can't be launched, as without a desktop
+	 */
+	FSService(FileLauncher launcher) throws NoSuchAlgorithmException {
 		hasher = new StreamFileHashCalculator();
-		launcher = new FileLauncher();
+		hashExecutor = new HashExecutor(hasher, Runtime.getRuntime()
+				.availableProcessors());
+		this.launcher = launcher;
 	}
 
 	public ProjectDir getRootPath() {
 		return rootPath;
 	}
 
+	/**
+	 * whether to use the operating systems file notifications (default) or
+	 * polling to watch the root path. Takes effect on the next
+	 * {@link #setRootPath(ProjectDir)}.
+	 * 
+	 * @see NativeWatcherEngine
+	 * @see PollingWatcherEngine
+	 */
+	public void setNativeWatching(boolean nativeWatching) {
+		this.nativeWatching = nativeWatching;
+	}
+
+	public boolean isNativeWatching() {
+		return nativeWatching;
+	}
+
+	/**
+	 * polling interval in milliseconds, if polling is used. Takes effect on
+	 * the next {@link #setRootPath(ProjectDir)}.
+	 */
+	public void setPollingInterval(long pollingInterval) {
+		this.pollingInterval = pollingInterval;
+	}
+
+	public long getPollingInterval() {
+		return pollingInterval;
+	}
+
+	/**
+	 * Takes effect on the next {@link #setRootPath(ProjectDir)}.
+	 * 
+	 * @see FolderWatcher#setTrustFolderTimestamps(boolean)
+	 */
+	public void setTrustFolderTimestamps(boolean trustFolderTimestamps) {
+		this.trustFolderTimestamps = trustFolderTimestamps;
+	}
+
+	public boolean isTrustFolderTimestamps() {
+		return trustFolderTimestamps;
+	}
+
+	/**
+	 * Takes effect on the next {@link #setRootPath(ProjectDir)}.
+	 * 
+	 * @see FolderWatcher#setParallelism(int)
+	 */
+	public void setScanParallelism(int scanParallelism) {
+		this.scanParallelism = scanParallelism;
+	}
+
+	public int getScanParallelism() {
+		return scanParallelism;
+	}
+
+	/**
+	 * Folder to keep the watcher snapshots in (one file per root path), so
+	 * that {@link #setRootPath(ProjectDir)} does not have to hash the whole
+	 * project again. null (the default) disables snapshots. Must not be
+	 * inside the project folder.
+	 * 
+	 * @see FolderWatcher#setSnapshotFile(File)
+	 */
+	public void setWatcherCacheDir(File watcherCacheDir) {
+		this.watcherCacheDir = watcherCacheDir;
+	}
+
+	public File getWatcherCacheDir() {
+		return watcherCacheDir;
+	}
+
+	/**
+	 * Pass the watcher's events to the modification listeners through an
+	 * {@link EventCoalescer} with this quiet period (in milliseconds), so
+	 * that a file is reported once for a burst of changes. 0 (the default)
+	 * passes every event on right away. Takes effect on the next
+	 * {@link #setRootPath(ProjectDir)}.
+	 */
+	public void setCoalesceQuietPeriod(long coalesceQuietPeriod) {
+		this.coalesceQuietPeriod = coalesceQuietPeriod;
+	}
+
+	public long getCoalesceQuietPeriod() {
+		return coalesceQuietPeriod;
+	}
+
+	/**
+	 * Longest time (in milliseconds) an event is held back by coalescing,
+	 * see {@link #setCoalesceQuietPeriod(long)}. Takes effect on the next
+	 * {@link #setRootPath(ProjectDir)}.
+	 */
+	public void setCoalesceMaxLatency(long coalesceMaxLatency) {
+		this.coalesceMaxLatency = coalesceMaxLatency;
+	}
+
+	public long getCoalesceMaxLatency() {
+		return coalesceMaxLatency;
+	}
+
+	private File getSnapshotFile(File root) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		String name = new HashValue(md.digest(root.getAbsolutePath()
+				.getBytes())).toString();
+		return new File(watcherCacheDir, "fss-" + name + ".snapshot");
+	}
+
+	/**
+	 * Number of threads used for hashing by
+	 * {@link #calculateHashOverFileAsync(String)} and the folder watcher.
+	 * Defaults to the number of processors. Takes effect immediately for
+	 * new requests; the watcher picks it up on the next
+	 * {@link #setRootPath(ProjectDir)}.
+	 */
+	public void setHashThreads(int threads) {
+		HashExecutor old = hashExecutor;
+		hashExecutor = new HashExecutor(hasher, threads);
+		old.shutdown();
+	}
+
+	public int getHashThreads() {
+		return hashExecutor.getThreads();
+	}
+
+	/**
+	 * Cache used by {@link #calculateHashOverFile(String)}, so that
+	 * unchanged files are not read again. Defaults to an in-memory cache of
+	 * {@link HashCache#DEFAULT_CAPACITY} entries; null disables caching.
+	 */
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	public HashCache getHashCache() {
+		return hashCache;
+	}
+
+	/**
+	 * Write files to a temporary file next to them first, which replaces them
+	 * when complete, so that nobody (including the folder watcher) sees a
+	 * half-written file. Symbolic links are followed; files with further
+	 * hard links get the complete content copied into them, which keeps the
+	 * links but is not atomic. The replacement keeps
+	 * permissions, owner and group where possible, but not ACLs or extended
+	 * attributes. Defaults to false.
+	 */
+	public void setAtomicWrites(boolean atomicWrites) {
+		this.atomicWrites = atomicWrites;
+	}
+
+	public boolean isAtomicWrites() {
+		return atomicWrites;
+	}
+
+	/**
+	 * Force written files to the disk before the write returns. Defaults to
+	 * false.
+	 */
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	/**
+	 * chunk size of the trees from {@link #calculateHashTreeOverFile(String)}
+	 */
+	public void setHashTreeChunkSize(int hashTreeChunkSize) {
+		this.hashTreeChunkSize = hashTreeChunkSize;
+	}
+
+	public int getHashTreeChunkSize() {
+		return hashTreeChunkSize;
+	}
+
+	/**
+	 * chunker used by {@link #chunkFile(String)}
+	 */
+	public void setChunker(ContentDefinedChunker chunker) {
+		this.chunker = chunker;
+	}
+
+	public ContentDefinedChunker getChunker() {
+		return chunker;
+	}
+
+	/**
+	 * Answer {@link #fileExists(String)}, {@link #folderExists(String)},
+	 * {@link #listFolder(String)}, {@link #getFileSize(String)} and
+	 * {@link #getLastModified(String)} from the folder watcher's index if it
+	 * is at most this many milliseconds behind the disk; otherwise (and for
+	 * paths the index doesn't know) they ask the disk. Changes made through
+	 * this service are always seen. With polling, the index is as old as the
+	 * last scan, so this has to be larger than the polling interval to help.
+	 * 0 (the default) always asks the disk.
+	 * 
+	 * @see FolderWatcher#lookup(String, long)
+	 */
+	public void setIndexStaleness(long indexStaleness) {
+		this.indexStaleness = indexStaleness;
+	}
+
+	public long getIndexStaleness() {
+		return indexStaleness;
+	}
+
+	/**
+	 * @return what the index knows about relpath, or null if it is not used
+	 *         or can't tell
+	 */
+	private FileInfo lookupIndex(String relpath) {
+		FolderWatcher watcher = fw;
+		if (indexStaleness <= 0 || watcher == null)
+			return null;
+		return watcher.lookup(relpath, indexStaleness);
+	}
+
+	/**
+	 * to be called after changing something at f
+	 */
+	void invalidateIndex(File f) {
+		FolderWatcher watcher = fw;
+		if (watcher != null)
+			watcher.invalidate(f);
+	}
+
+	private IWatcherEngine createWatcherEngine() {
+		if (nativeWatching)
+			return new NativeWatcherEngine();
+		else
+			return new PollingWatcherEngine(pollingInterval);
+	}
+
 	public void unsetRootPath() {
+		/*
+		 * first, as a scan may be blocked dispatching to a slow listener,
+		 * holding the watcher that cancel() needs
+		 */
+		for (ChangeSetDispatcher d : dispatchers.values())
+			d.close();
+		dispatchers.clear();
+		if (coalescer != null) {
+			fw.removeListener(coalescer);
+			coalescer.shutdown();
+			coalescer = null;
+		}
 		if (fw != null) {
-			fw.cancel();
 			fw.removeListener(this);
+			fw.cancel();
+		}
+		synchronized (collectedChanges) {
+			collectedChanges.clear();
+			missedChanges = null;
 		}
-		modificationListener.clear();
 	}
 
 	public void setRootPath(ProjectDir path) throws FileNotFoundException,
@@ -72,29 +407,114 @@ public class FSService implements IFSService, IModificationListener {
 		rootPath = path;
 
 		try {
-			fw = new FolderWatcher(this.rootPath, 700);
+			fw = new FolderWatcher(this.rootPath, createWatcherEngine());
+			fw.setTrustFolderTimestamps(trustFolderTimestamps);
+			fw.setParallelism(scanParallelism);
+			fw.setHashExecutor(hashExecutor);
+			if (watcherCacheDir != null) {
+				watcherCacheDir.mkdirs();
+				fw.setSnapshotFile(getSnapshotFile(this.rootPath));
+			}
 		} catch (NoSuchAlgorithmException e) {
 			/* won't happen as we use the same algorithm here and it loaded. */
 		}
+		/*
+		 * what changed since the snapshot is news, see scanCompleted();
+		 * without one, the initial run only gets to know the files
+		 */
+		boolean fromSnapshot = fw.loadSnapshot();
+		if (fromSnapshot)
+			listenToWatcher();
 		fw.initialRun();
-		fw.addListener(this);
+		if (!fromSnapshot)
+			listenToWatcher();
 		fw.run();
 	}
 
-	public void addModificationListener(IFileModificationListener l) {
-		synchronized (modificationListener) {
-			modificationListener.add(l);
+	private void listenToWatcher() {
+		if (coalesceQuietPeriod > 0) {
+			coalescer = new EventCoalescer(this, coalesceQuietPeriod,
+					coalesceMaxLatency);
+			fw.addListener(coalescer);
+		} else {
+			fw.addListener(this);
 		}
 	}
 
+	public void addModificationListener(IFileModificationListener l) {
+		addChangeSetListener(new ChangeSetAdapter(l));
+	}
+
 	public void removeModificationListener(IFileModificationListener l) {
-		synchronized (modificationListener) {
-			modificationListener.remove(l);
+		removeChangeSetListener(new ChangeSetAdapter(l));
+	}
+
+	/**
+	 * Listeners added after {@link #setRootPath(ProjectDir)} first get the
+	 * last change set if nobody was listening when it came, such as what
+	 * changed since the watcher snapshot (see
+	 * {@link #setWatcherCacheDir(File)}) while the project was closed.
+	 */
+	public void addChangeSetListener(IChangeSetListener l) {
+		ChangeSetDispatcher d = new ChangeSetDispatcher(l,
+				listenerQueueCapacity, listenerOverflowPolicy,
+				dispatchExecutor);
+		ChangeSetDispatcher old;
+		synchronized (collectedChanges) {
+			old = dispatchers.put(l, d);
+			if (missedChanges != null)
+				d.dispatch(missedChanges);
 		}
+		if (old != null)
+			old.close();
+	}
+
+	public void removeChangeSetListener(IChangeSetListener l) {
+		ChangeSetDispatcher d = dispatchers.remove(l);
+		if (d != null)
+			d.close();
+	}
+
+	/**
+	 * @return the dispatchers of the registered listeners, for their
+	 *         metrics and resync flags. Per-file listeners are wrapped in a
+	 *         {@link ChangeSetAdapter}.
+	 */
+	public Collection<ChangeSetDispatcher> getDispatchers() {
+		return Collections.unmodifiableCollection(dispatchers.values());
+	}
+
+	/**
+	 * Change-sets that may be waiting for a listener. Applies to listeners
+	 * registered afterwards.
+	 */
+	public void setListenerQueueCapacity(int listenerQueueCapacity) {
+		this.listenerQueueCapacity = listenerQueueCapacity;
+	}
+
+	public int getListenerQueueCapacity() {
+		return listenerQueueCapacity;
+	}
+
+	/**
+	 * What to do when a listener's queue is full; defaults to
+	 * {@link ChangeSetDispatcher.OverflowPolicy#BLOCK}, which stalls the
+	 * folder watcher. Applies to listeners registered afterwards.
+	 */
+	public void setListenerOverflowPolicy(
+			ChangeSetDispatcher.OverflowPolicy listenerOverflowPolicy) {
+		this.listenerOverflowPolicy = listenerOverflowPolicy;
+	}
+
+	public ChangeSetDispatcher.OverflowPolicy getListenerOverflowPolicy() {
+		return listenerOverflowPolicy;
 	}
 
 	public Boolean fileExists(String relpath) throws InvalidFilenameException {
 		File f = convertToAbsPath(relpath);
+		FileInfo fi = lookupIndex(relpath);
+		if (fi != null)
+			return fi.isFile();
 		return f.exists() && f.isFile();
 	}
 
@@ -105,12 +525,18 @@ public class FSService implements IFSService, IModificationListener {
 			relpath = relpath.substring(1);
 		}
 		File f = convertToAbsPath("/" + relpath);
+		Iterable<String> names = null;
+		FolderWatcher watcher = fw;
+		if (indexStaleness > 0 && watcher != null)
+			names = watcher.list(relpath, indexStaleness);
+		if (names == null)
+			names = FileUtils.listMinusA(f);
 		List<String> list = new ArrayList<String>();
-		for (String file : FileUtils.listMinusA(f)) {
+		for (String file : names) {
 			if (!relpath.equals(""))
 				file = relpath + '/' + file;
 
-			if (isValidRelpath(file))
+			if (isValidRelpath(file) && !FileUtils.isTempFile(file))
 				list.add(file);
 		}
 		return list;
@@ -118,27 +544,54 @@ public class FSService implements IFSService, IModificationListener {
 
 	public List<String> recursiveListFiles() throws IOException {
 		List<String> list = new ArrayList<String>();
-		List<String> dirlist;
+		Stream<FileInfo> files;
 		try {
-			dirlist = listFolder("");
+			files = walk("");
 		} catch (InvalidFilenameException e) {
 			throw new IOException(e);
+		} catch (NotADirectoryException e) {
+			/* the root folder is gone */
+			return list;
 		}
-		for (int i = 0; i < dirlist.size(); i++) {
-			String f = dirlist.get(i);
-			try {
-				if (folderExists(f)) {
-					dirlist.addAll(listFolder(f));
-				} else if (fileExists(f)) {
-					list.add(f);
-				}
-			} catch (InvalidFilenameException e) {
-				// won't happen
+		try {
+			Iterator<FileInfo> it = files.iterator();
+			while (it.hasNext()) {
+				FileInfo fi = it.next();
+				if (fi.isFile())
+					list.add(fi.getRelpath());
 			}
+		} finally {
+			files.close();
 		}
 		return list;
 	}
 
+	public Stream<FileInfo> walk(String inrelpath)
+			throws InvalidFilenameException, NotADirectoryException {
+		String relpath = inrelpath;
+		while (relpath.startsWith("/")) {
+			relpath = relpath.substring(1);
+		}
+		File f = convertToAbsPath("/" + relpath);
+		if (!f.isDirectory())
+			throw new NotADirectoryException();
+		final FileWalker walker;
+		try {
+			walker = new FileWalker(this, f, relpath);
+		} catch (IOException e) {
+			throw new NotADirectoryException();
+		}
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(walker,
+						Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(new Runnable() {
+
+					public void run() {
+						walker.close();
+					}
+				});
+	}
+
 	@Deprecated
 	public byte[] readFile(String relpath) throws InvalidFilenameException,
 			FileNotFoundException, NotAReadableFileException {
@@ -180,6 +633,62 @@ public class FSService implements IFSService, IModificationListener {
 		return readFileStreamAbs(convertToAbsPath(relpath));
 	}
 
+	public InputStream readFileStream(String relpath, HashValue expected)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException {
+		return new VerifyingInputStream(readFileStream(relpath), expected,
+				relpath);
+	}
+
+	public int readFileRange(String relpath, long offset, ByteBuffer dst)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException, IOException {
+		if (offset < 0)
+			throw new IllegalArgumentException("negative offset");
+		FileChannel channel = openFileChannel(relpath);
+		try {
+			int total = 0;
+			while (dst.hasRemaining()) {
+				int n = channel.read(dst, offset + total);
+				if (n < 0) {
+					if (total == 0)
+						return -1;
+					break;
+				}
+				total += n;
+			}
+			return total;
+		} finally {
+			channel.close();
+		}
+	}
+
+	public FileChannel openFileChannel(String relpath)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException {
+		File f = convertToAbsPath(relpath);
+		checkFileExists(f);
+		checkIsFile(f);
+		try {
+			return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			/* we already know the file exists: permissions */
+			throw new NotAReadableFileException();
+		}
+	}
+
+	public MappedByteBuffer mapFile(String relpath, long offset, long length)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException, IOException {
+		FileChannel channel = openFileChannel(relpath);
+		try {
+			/* the mapping stays valid after the channel is closed */
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		} finally {
+			channel.close();
+		}
+	}
+
 	public static InputStream readFileStreamAbs(File f)
 			throws FileNotFoundException, NotAReadableFileException {
 		checkFileExists(f);
@@ -198,7 +707,7 @@ public class FSService implements IFSService, IModificationListener {
 		return fr;
 	}
 
-	private File convertToAbsPath(String relpath)
+	File convertToAbsPath(String relpath)
 			throws InvalidFilenameException {
 		if (!isValidRelpath(relpath))
 			throw new InvalidFilenameException("File " + relpath
@@ -250,22 +759,156 @@ public class FSService implements IFSService, IModificationListener {
 				throw new CreatingSubDirectoriesFailedException();
 		}
 
-		FileOutputStream fr = new FileOutputStream(filename);
-		fr.write(content);
-		fr.close();
-		fr = null;
-		System.gc();
+		AtomicFileOutput out = new AtomicFileOutput(f, atomicWrites,
+				syncWrites);
+		try {
+			out.getStream().write(content);
+			out.commit();
+		} finally {
+			out.abort();
+			invalidateIndex(f);
+		}
 	}
 
 	public void writeFileStream(String relpath, InputStream source)
 			throws InvalidFilenameException, NotAFileException,
 			CreatingSubDirectoriesFailedException, IOException {
-		writeFileStreamAbs(convertToAbsPath(relpath), source);
+		File f = convertToAbsPath(relpath);
+		try {
+			writeFileStreamAbs(f, source, atomicWrites, syncWrites);
+		} finally {
+			invalidateIndex(f);
+		}
+	}
+
+	public WriteResult writeFileStreamWithHash(String relpath,
+			InputStream source) throws InvalidFilenameException,
+			NotAFileException, CreatingSubDirectoriesFailedException,
+			IOException {
+		File f = convertToAbsPath(relpath);
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(HashValue.DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		BasicFileAttributes attr;
+		try {
+			attr = writeFileStreamAbs(f, new DigestInputStream(source, md),
+					atomicWrites, syncWrites);
+		} finally {
+			invalidateIndex(f);
+		}
+		WriteResult result = new WriteResult(new HashValue(md.digest()), attr
+				.size(), attr.lastModifiedTime().toMillis());
+
+		FolderWatcher watcher = fw;
+		if (watcher != null)
+			watcher.addHashHint(f, result.getSize(), result.getLastModified(),
+					result.getHash());
+		return result;
 	}
 
 	public static void writeFileStreamAbs(File f, InputStream source)
 			throws NotAFileException, CreatingSubDirectoriesFailedException,
 			IOException {
+		writeFileStreamAbs(f, source, false, false);
+	}
+
+	/**
+	 * @param atomic
+	 *            write to a temporary file that replaces f when complete
+	 * @param sync
+	 *            force the content to the disk before returning
+	 * @return the attributes of the written file
+	 */
+	public static BasicFileAttributes writeFileStreamAbs(File f,
+			InputStream source, boolean atomic, boolean sync)
+			throws NotAFileException, CreatingSubDirectoriesFailedException,
+			IOException {
+		prepareDestination(f);
+
+		try {
+			AtomicFileOutput out = new AtomicFileOutput(f, atomic, sync);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while ((len = source.read(buf)) > 0) {
+					out.getStream().write(buf, 0, len);
+				}
+				return out.commit();
+			} finally {
+				out.abort();
+			}
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Copies the file within the kernel where the platform allows it
+	 * (FileChannel.transferTo), creating subdirectories if needed.
+	 */
+	public static void copyFileAbs(File from, File to)
+			throws NotAReadableFileException, NotAFileException,
+			CreatingSubDirectoriesFailedException, IOException {
+		copyFileAbs(from, to, false, false);
+	}
+
+	/**
+	 * @param atomic
+	 *            write to a temporary file that replaces f when complete
+	 * @param sync
+	 *            force the content to the disk before returning
+	 */
+	public static void copyFileAbs(File from, File to, boolean atomic,
+			boolean sync) throws NotAReadableFileException,
+			NotAFileException, CreatingSubDirectoriesFailedException,
+			IOException {
+		prepareDestination(to);
+
+		FileInputStream source;
+		try {
+			source = new FileInputStream(from);
+		} catch (FileNotFoundException e) {
+			throw new NotAReadableFileException();
+		}
+		try {
+			AtomicFileOutput destination = new AtomicFileOutput(to, atomic,
+					sync);
+			try {
+				FileChannel in = source.getChannel();
+				FileChannel out = destination.getStream().getChannel();
+				long size = in.size();
+				long pos = 0;
+				while (pos < size) {
+					long n = in.transferTo(pos, Math.min(TRANSFER_CHUNK,
+							size - pos), out);
+					if (n <= 0)
+						break;
+					pos += n;
+				}
+				/* the file might have grown meanwhile */
+				out.position(pos);
+				ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+				in.position(pos);
+				while (in.read(buf) >= 0) {
+					buf.flip();
+					while (buf.hasRemaining())
+						out.write(buf);
+					buf.clear();
+				}
+				destination.commit();
+			} finally {
+				destination.abort();
+			}
+		} finally {
+			source.close();
+		}
+	}
+
+	static void prepareDestination(File f) throws NotAFileException,
+			CreatingSubDirectoriesFailedException {
 		if (f.exists() && !f.isFile())
 			throw new NotAFileException();
 		if (f.getParentFile().exists()) {
@@ -275,26 +918,14 @@ public class FSService implements IFSService, IModificationListener {
 			if (!f.getParentFile().mkdirs())
 				throw new CreatingSubDirectoriesFailedException();
 		}
-
-		FileOutputStream destination = null;
-		destination = new FileOutputStream(f);
-
-		byte[] buf = new byte[1024];
-		int len;
-		while ((len = source.read(buf)) > 0) {
-			destination.write(buf, 0, len);
-		}
-		if (destination != null) {
-			destination.close();
-		}
-		if (source != null) {
-			source.close();
-		}
 	}
 
 	public Boolean folderExists(String relpath)
 			throws InvalidFilenameException, IOException {
 		File f = convertToAbsPath(relpath);
+		FileInfo fi = lookupIndex(relpath);
+		if (fi != null)
+			return fi.isFolder();
 		return f.exists() && f.isDirectory();
 	}
 
@@ -308,15 +939,7 @@ public class FSService implements IFSService, IModificationListener {
 	}
 
 	public Boolean isValidRelpath(String relpath) {
-		String regex = "[A-Z a-z0-9\\-+_./\\(\\)]+";
-		Pattern p = Pattern.compile(regex);
-		Matcher m = p.matcher(relpath);
-
-		if (!(m.find() && m.start() == 0 && m.end() == relpath.length())) {
-			return false;
-		}
-		return !(relpath.contains("/../") || relpath.startsWith("../")
-				|| relpath.endsWith("/..") || relpath.equals(".."));
+		return RelpathValidator.isValid(relpath);
 	}
 
 	public boolean deleteFile(String relpath) throws InvalidFilenameException,
@@ -325,15 +948,33 @@ public class FSService implements IFSService, IModificationListener {
 		log.info("Delete File: " + f);
 		checkFileExists(f);
 		checkIsFile(f);
-		if (!f.delete())
-			return false;
+		try {
+			if (!f.delete())
+				return false;
+			forgetHash(f);
 
-		/* TODO: Check if this is a infinite loop on a empty drive on windows */
-		deleteEmptyFolderRecursive(f.getParentFile());
+			/*
+			 * TODO: Check if this is a infinite loop on a empty drive on
+			 * windows
+			 */
+			deleteEmptyFolderRecursive(f.getParentFile());
+		} finally {
+			invalidateIndex(f);
+		}
 
 		return true;
 	}
 
+	/**
+	 * drops the cached hash of a file that is gone, so that the cache does
+	 * not keep growing
+	 */
+	private void forgetHash(File f) {
+		HashCache cache = hashCache;
+		if (cache != null)
+			cache.remove(f.getAbsolutePath());
+	}
+
 	private void deleteEmptyFolderRecursive(File f) {
 		if (!f.isDirectory())
 			return;
@@ -357,6 +998,16 @@ public class FSService implements IFSService, IModificationListener {
 		if (!f.isDirectory())
 			throw new NotADirectoryException();
 
+		try {
+			return deleteFolderContent(relpath, f);
+		} finally {
+			invalidateIndex(f);
+		}
+	}
+
+	private boolean deleteFolderContent(String relpath, File f)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotADirectoryException {
 		for (String children : FileUtils.listMinusA(f)) {
 			File childFile = new File(f, children);
 			String relpathchild = relpath + "/" + children;
@@ -445,8 +1096,11 @@ public class FSService implements IFSService, IModificationListener {
 		checkFileIsReadable(fileFrom);
 		checkFileNotExists(fileTo);
 
-		// TODO this should be atomic
-		FSService.writeFileStreamAbs(fileTo, readFileStreamAbs(fileFrom));
+		try {
+			copyFileAbs(fileFrom, fileTo, atomicWrites, syncWrites);
+		} finally {
+			invalidateIndex(fileTo);
+		}
 
 		return true;
 	}
@@ -467,7 +1121,12 @@ public class FSService implements IFSService, IModificationListener {
 		checkFileIsReadable(fileFrom);
 		checkFileNotExists(fileTo);
 
-		if (!fileFrom.renameTo(fileTo)) {
+		boolean renamed = fileFrom.renameTo(fileTo);
+		invalidateIndex(fileFrom);
+		invalidateIndex(fileTo);
+		if (renamed)
+			forgetHash(fileFrom);
+		if (!renamed) {
 			// FALLBACK SOLUTION FOR MOVE - copy the file and remove it
 
 			// TODO this should be atomic
@@ -480,12 +1139,19 @@ public class FSService implements IFSService, IModificationListener {
 
 	public void launchFile(String relpath) throws InvalidFilenameException,
 			LaunchException {
-		launcher.launchFile(convertToAbsPath(relpath));
+		File f = convertToAbsPath(relpath);
+		if (launcher == null)
+			throw new LaunchException(new IOException(
+					"Launching files is not supported"));
+		launcher.launchFile(f);
 	}
 
 	public long getFileSize(String relpath) throws InvalidFilenameException,
 			FileNotFoundException, NotAFileException {
 		File f = convertToAbsPath(relpath);
+		FileInfo fi = lookupIndex(relpath);
+		if (fi != null && fi.isFile())
+			return fi.getSize();
 		if (!f.exists())
 			throw new FileNotFoundException("Not found: " + relpath);
 		if (!f.isFile())
@@ -505,7 +1171,138 @@ public class FSService implements IFSService, IModificationListener {
 	public HashValue calculateHashOverFile(String relpath)
 			throws InvalidFilenameException, NotAReadableFileException,
 			FileNotFoundException {
-		return this.hasher.calculateHash(readFileStream(relpath));
+		File f = convertToAbsPath(relpath);
+		checkFileExists(f);
+		checkIsFile(f);
+		HashCache cache = hashCache;
+		BasicFileAttributes attr = null;
+		if (cache != null) {
+			try {
+				attr = Files.readAttributes(f.toPath(),
+						BasicFileAttributes.class);
+				HashValue h = cache.get(f.getAbsolutePath(), attr.size(), attr
+						.lastModifiedTime().toMillis(), attr.fileKey());
+				if (h != null)
+					return h;
+			} catch (IOException e) {
+				throw new NotAReadableFileException();
+			}
+		}
+
+		HashValue h;
+		try {
+			h = this.hasher.calculateHash(f);
+		} catch (FileNotFoundException e) {
+			/* we already know the file exists: permissions */
+			throw new NotAReadableFileException();
+		}
+		if (cache != null)
+			cache.put(f.getAbsolutePath(), attr.size(), attr
+					.lastModifiedTime().toMillis(), attr.fileKey(), h);
+		return h;
+	}
+
+	public CompletableFuture<HashValue> calculateHashOverFileAsync(
+			String relpath) throws InvalidFilenameException {
+		return hashExecutor.submit(convertToAbsPath(relpath));
+	}
+
+	public HashTree calculateHashTreeOverFile(String relpath)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException {
+		File f = convertToAbsPath(relpath);
+		checkFileExists(f);
+		checkIsFile(f);
+		try {
+			return HashTree.calculate(f, hashTreeChunkSize, hashExecutor
+					.getExecutor());
+		} catch (IOException e) {
+			throw new NotAReadableFileException();
+		}
+	}
+
+	public void updateHashTree(String relpath, HashTree tree, long from,
+			long to) throws InvalidFilenameException,
+			NotAReadableFileException, FileNotFoundException {
+		File f = convertToAbsPath(relpath);
+		checkFileExists(f);
+		checkIsFile(f);
+		try {
+			tree.update(f, from, to, hashExecutor.getExecutor());
+		} catch (IOException e) {
+			throw new NotAReadableFileException();
+		}
+	}
+
+	public List<Chunk> chunkFile(String relpath)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException {
+		try {
+			return chunker.chunk(readFileStream(relpath));
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NotAReadableFileException();
+		}
+	}
+
+	public FileSignature calculateSignature(String relpath)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException {
+		try {
+			return FileSignature.calculate(readFileStream(relpath),
+					FileSignature.DEFAULT_BLOCK_SIZE);
+		} catch (FileNotFoundException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new NotAReadableFileException();
+		}
+	}
+
+	public void applyDelta(String relpath, FileDelta delta)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException, IOException {
+		File f = convertToAbsPath(relpath);
+		checkFileExists(f);
+		checkIsFile(f);
+		try {
+			applyDeltaAbs(f, delta, syncWrites);
+		} finally {
+			invalidateIndex(f);
+		}
+	}
+
+	/**
+	 * Builds the new content in a temporary file, as the delta reads the old
+	 * one while it is applied. The file is only touched once the result is
+	 * complete and has the expected hash.
+	 */
+	static void applyDeltaAbs(File f, FileDelta delta, boolean sync)
+			throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(HashValue.DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new DigestInputStream(delta.apply(f), md);
+		try {
+			AtomicFileOutput out = new AtomicFileOutput(f, true, sync);
+			try {
+				byte[] buf = new byte[64 * 1024];
+				int len;
+				while ((len = in.read(buf)) >= 0)
+					out.getStream().write(buf, 0, len);
+				if (!delta.getTargetHash().equals(new HashValue(md.digest())))
+					throw new IOException("Delta doesn't apply to " + f);
+				in.close();
+				out.commit();
+			} finally {
+				out.abort();
+			}
+		} finally {
+			in.close();
+		}
 	}
 
 	public int getHashLength() {
@@ -514,25 +1311,61 @@ public class FSService implements IFSService, IModificationListener {
 
 	public long getLastModified(String relpath)
 			throws InvalidFilenameException, NotAFileException {
+		File f = convertToAbsPath(relpath);
+		FileInfo fi = lookupIndex(relpath);
+		if (fi != null && fi.isFile())
+			return fi.getLastModified();
 		if (!fileExists(relpath))
 			throw new NotAFileException();
-		return convertToAbsPath(relpath).lastModified();
+		return f.lastModified();
 	}
 
 	public void fileModified(File f, ModifyActions action) {
 		if (rootPath == null)
 			return;
 
-		String relpath = f.getAbsolutePath()
-				.replace(rootPath + File.separator, "")
-				.replace(File.separatorChar, '/');
-		synchronized (modificationListener) {
-			for (IFileModificationListener l : modificationListener) {
-				l.fileModified(relpath, action);
-			}
+		collect(new FileChange(toRelpath(f), action));
+	}
+
+	public void fileMoved(File from, File to) {
+		if (rootPath == null)
+			return;
+
+		collect(new FileChange(toRelpath(to), ModifyActions.MOVED,
+				toRelpath(from)));
+	}
+
+	private void collect(FileChange change) {
+		synchronized (collectedChanges) {
+			if (collectedChanges.isEmpty())
+				collectingSince = System.currentTimeMillis();
+			collectedChanges.add(change);
 		}
 	}
 
+	/**
+	 * passes the changes collected since the last call on as one
+	 * {@link ChangeSet}
+	 */
+	public void scanCompleted() {
+		ChangeSet changes;
+		synchronized (collectedChanges) {
+			if (collectedChanges.isEmpty())
+				return;
+			changes = new ChangeSet(++changeSetSequence, collectingSince,
+					System.currentTimeMillis(), collectedChanges);
+			collectedChanges.clear();
+			missedChanges = dispatchers.isEmpty() ? changes : null;
+		}
+		for (ChangeSetDispatcher d : dispatchers.values())
+			d.dispatch(changes);
+	}
+
+	private String toRelpath(File f) {
+		return f.getAbsolutePath().replace(rootPath + File.separator, "")
+				.replace(File.separatorChar, '/');
+	}
+
 	@Override
 	public String getFileName(String relpath) throws InvalidFilenameException {
 		return convertToAbsPath(relpath).getName();
@@ -544,8 +1377,12 @@ public class FSService implements IFSService, IModificationListener {
 		File f = convertToAbsPath(relpath);
 		if (f.exists())
 			throw new IOException();
-		if (!f.mkdirs())
-			throw new IOException();
+		try {
+			if (!f.mkdirs())
+				throw new IOException();
+		} finally {
+			invalidateIndex(f);
+		}
 	}
 
 	@Override
@@ -595,8 +1432,11 @@ public class FSService implements IFSService, IModificationListener {
 		checkFileIsReadable(fileFrom);
 		checkFileNotExists(fileTo);
 
-		// TODO this should be atomic
-		writeFileStreamAbs(fileTo, readFileStreamAbs(fileFrom));
+		try {
+			copyFileAbs(fileFrom, fileTo, atomicWrites, syncWrites);
+		} finally {
+			invalidateIndex(fileTo);
+		}
 	}
 
 	private static void checkIsFile(File f) throws NotAFileException {
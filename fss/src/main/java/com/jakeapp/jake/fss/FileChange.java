@@ -0,0 +1,53 @@
+package com.jakeapp.jake.fss;
+
+import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
+
+/**
+ * One change to a file of the project, part of a {@link ChangeSet}.
+ * 
+ * @author johannes
+ */
+public class FileChange {
+
+	private final String relpath;
+
+	private final ModifyActions action;
+
+	private final String fromRelpath;
+
+	public FileChange(String relpath, ModifyActions action) {
+		this(relpath, action, null);
+	}
+
+	/**
+	 * @param fromRelpath
+	 *            for {@link ModifyActions#MOVED}: where the file was
+	 */
+	public FileChange(String relpath, ModifyActions action, String fromRelpath) {
+		this.relpath = relpath;
+		this.action = action;
+		this.fromRelpath = fromRelpath;
+	}
+
+	public String getRelpath() {
+		return relpath;
+	}
+
+	public ModifyActions getAction() {
+		return action;
+	}
+
+	/**
+	 * @return where a moved file was, null for other actions
+	 */
+	public String getFromRelpath() {
+		return fromRelpath;
+	}
+
+	@Override
+	public String toString() {
+		if (fromRelpath != null)
+			return fromRelpath + " -> " + relpath + ":" + action;
+		return relpath + ":" + action;
+	}
+}
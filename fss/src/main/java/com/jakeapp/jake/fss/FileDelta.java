@@ -0,0 +1,409 @@
+package com.jakeapp.jake.fss;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between an old and a new version of a file, as in rsync: a
+ * list of instructions to either copy a range of the old file or to insert
+ * literal bytes. Created from the {@link FileSignature} of the old version
+ * and the new content, so the old version is not needed to create it.
+ * 
+ * @author johannes
+ */
+public class FileDelta {
+
+	private static final int MAX_LITERAL = 64 * 1024;
+
+	/**
+	 * copies <code>length</code> bytes from <code>offset</code> of the old
+	 * file, or inserts <code>literal</code> if that is not null.
+	 */
+	public static class Instruction {
+
+		private final long offset;
+
+		private final int length;
+
+		private final byte[] literal;
+
+		Instruction(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+			this.literal = null;
+		}
+
+		Instruction(byte[] literal) {
+			this.offset = -1;
+			this.length = literal.length;
+			this.literal = literal;
+		}
+
+		public boolean isLiteral() {
+			return literal != null;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getLiteral() {
+			return literal;
+		}
+	}
+
+	private final List<Instruction> instructions;
+
+	private final HashValue targetHash;
+
+	FileDelta(List<Instruction> instructions, HashValue targetHash) {
+		this.instructions = instructions;
+		this.targetHash = targetHash;
+	}
+
+	public List<Instruction> getInstructions() {
+		return Collections.unmodifiableList(instructions);
+	}
+
+	/**
+	 * @return the hash of the new version of the file
+	 */
+	public HashValue getTargetHash() {
+		return targetHash;
+	}
+
+	/**
+	 * @return number of bytes that have to be transferred
+	 */
+	public long getLiteralBytes() {
+		long n = 0;
+		for (Instruction i : instructions) {
+			if (i.isLiteral())
+				n += i.getLength();
+		}
+		return n;
+	}
+
+	/**
+	 * @return length of the new version of the file
+	 */
+	public long getTargetLength() {
+		long n = 0;
+		for (Instruction i : instructions)
+			n += i.getLength();
+		return n;
+	}
+
+	/**
+	 * Reads the new content to its end and closes it.
+	 * 
+	 * @param basis
+	 *            signature of the old version
+	 * @param target
+	 *            the new version
+	 */
+	public static FileDelta create(FileSignature basis, InputStream target)
+			throws IOException {
+		try {
+			return new Generator(basis, target).run();
+		} finally {
+			target.close();
+		}
+	}
+
+	private static class Generator {
+
+		private final FileSignature basis;
+
+		private final int blockSize;
+
+		private final InputStream in;
+
+		private final MessageDigest targetDigest = FileSignature.newDigest();
+
+		private final MessageDigest blockDigest = FileSignature.newDigest();
+
+		private final Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+
+		private final List<Instruction> result = new ArrayList<Instruction>();
+
+		private final byte[] buf;
+
+		private int filled = 0;
+
+		private int pos = 0;
+
+		private int literalStart = 0;
+
+		private boolean eof = false;
+
+		Generator(FileSignature basis, InputStream in) {
+			this.basis = basis;
+			this.blockSize = basis.getBlockSize();
+			this.in = in;
+			this.buf = new byte[Math.max(4 * blockSize, 2 * MAX_LITERAL)];
+			for (int i = 0; i < basis.getBlockCount(); i++) {
+				List<Integer> l = blocks.get(basis.getWeak(i));
+				if (l == null) {
+					l = new ArrayList<Integer>(1);
+					blocks.put(basis.getWeak(i), l);
+				}
+				l.add(i);
+			}
+		}
+
+		FileDelta run() throws IOException {
+			RollingChecksum checksum = new RollingChecksum();
+			boolean rolling = false;
+			while (true) {
+				ensure(blockSize + 1);
+				int remaining = filled - pos;
+				if (remaining < blockSize) {
+					tail(remaining);
+					break;
+				}
+				if (!rolling) {
+					checksum.reset(buf, pos, blockSize);
+					rolling = true;
+				}
+				int block = find(checksum.getValue(), pos, blockSize);
+				if (block >= 0) {
+					copy(block, pos);
+					pos += blockSize;
+					literalStart = pos;
+					rolling = false;
+				} else {
+					if (remaining > blockSize)
+						checksum.roll(buf[pos], buf[pos + blockSize]);
+					else
+						rolling = false;
+					pos++;
+					if (pos - literalStart >= MAX_LITERAL)
+						literal(pos);
+				}
+			}
+			return new FileDelta(result, new HashValue(targetDigest.digest()));
+		}
+
+		/**
+		 * less than a block left: it might still be the short last block
+		 */
+		private void tail(int remaining) {
+			int last = basis.getBlockCount() - 1;
+			if (last >= 0) {
+				int length = basis.getBlockLength(last);
+				if (length < blockSize && length > 0 && remaining >= length) {
+					int start = filled - length;
+					if (matches(last, RollingChecksum.of(buf, start, length),
+							start, length)) {
+						literal(start);
+						copy(last, start);
+						literalStart = filled;
+					}
+				}
+			}
+			literal(filled);
+		}
+
+		/**
+		 * @return a block with this content, or -1
+		 */
+		private int find(int weak, int start, int length) {
+			List<Integer> candidates = blocks.get(weak);
+			if (candidates == null)
+				return -1;
+			HashValue strong = null;
+			for (int block : candidates) {
+				if (basis.getBlockLength(block) != length)
+					continue;
+				if (strong == null) {
+					blockDigest.update(buf, start, length);
+					strong = new HashValue(blockDigest.digest());
+				}
+				if (strong.equals(basis.getStrong(block)))
+					return block;
+			}
+			return -1;
+		}
+
+		private boolean matches(int block, int weak, int start, int length) {
+			if (basis.getWeak(block) != weak)
+				return false;
+			blockDigest.update(buf, start, length);
+			return new HashValue(blockDigest.digest()).equals(basis
+					.getStrong(block));
+		}
+
+		private void copy(int block, int start) {
+			literal(start);
+			long offset = (long) block * blockSize;
+			int length = basis.getBlockLength(block);
+			if (!result.isEmpty()) {
+				Instruction prev = result.get(result.size() - 1);
+				if (!prev.isLiteral()
+						&& prev.getOffset() + prev.getLength() == offset
+						&& (long) prev.getLength() + length <= Integer.MAX_VALUE) {
+					result.set(result.size() - 1, new Instruction(prev
+							.getOffset(), prev.getLength() + length));
+					return;
+				}
+			}
+			result.add(new Instruction(offset, length));
+		}
+
+		/**
+		 * emits the pending literal bytes up to end
+		 */
+		private void literal(int end) {
+			while (end > literalStart) {
+				int n = Math.min(end - literalStart, MAX_LITERAL);
+				result.add(new Instruction(Arrays.copyOfRange(buf,
+						literalStart, literalStart + n)));
+				literalStart += n;
+			}
+		}
+
+		/**
+		 * makes sure n bytes from pos are in the buffer, unless the stream
+		 * ends first
+		 */
+		private void ensure(int n) throws IOException {
+			if (eof || filled - pos >= n)
+				return;
+			if (literalStart > 0) {
+				/* pending literal bytes are kept */
+				System.arraycopy(buf, literalStart, buf, 0, filled
+						- literalStart);
+				filled -= literalStart;
+				pos -= literalStart;
+				literalStart = 0;
+			}
+			while (filled - pos < n) {
+				int r = in.read(buf, filled, buf.length - filled);
+				if (r < 0) {
+					eof = true;
+					break;
+				}
+				targetDigest.update(buf, filled, r);
+				filled += r;
+			}
+		}
+	}
+
+	/**
+	 * @param basis
+	 *            the old version of the file, whose signature was used to
+	 *            create this delta
+	 * @return the content of the new version. Closing it closes the basis.
+	 */
+	public InputStream apply(File basis) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(basis, "r");
+		return new InputStream() {
+
+			private int instruction = 0;
+
+			private int done = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				while (instruction < instructions.size()
+						&& done == instructions.get(instruction).getLength()) {
+					instruction++;
+					done = 0;
+				}
+				if (instruction == instructions.size())
+					return -1;
+				Instruction i = instructions.get(instruction);
+				int n = Math.min(len, i.getLength() - done);
+				if (i.isLiteral()) {
+					System.arraycopy(i.getLiteral(), done, b, off, n);
+				} else {
+					raf.seek(i.getOffset() + done);
+					n = raf.read(b, off, n);
+					if (n < 0)
+						throw new IOException("basis file is too short");
+				}
+				done += n;
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				raf.close();
+			}
+		};
+	}
+
+	/**
+	 * Writes the delta, to be read by {@link #readFrom(InputStream)}.
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeShort(targetHash.getValue().length);
+		out.write(targetHash.getValue());
+		out.writeInt(instructions.size());
+		for (Instruction i : instructions) {
+			out.writeBoolean(i.isLiteral());
+			if (i.isLiteral()) {
+				out.writeInt(i.getLength());
+				out.write(i.getLiteral());
+			} else {
+				out.writeLong(i.getOffset());
+				out.writeInt(i.getLength());
+			}
+		}
+		out.flush();
+	}
+
+	public static FileDelta readFrom(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		int hashLength = in.readShort();
+		if (hashLength <= 0)
+			throw new IOException("corrupt delta");
+		byte[] hash = new byte[hashLength];
+		in.readFully(hash);
+		int count = in.readInt();
+		if (count < 0)
+			throw new IOException("corrupt delta");
+		List<Instruction> instructions = new ArrayList<Instruction>();
+		for (int n = 0; n < count; n++) {
+			if (in.readBoolean()) {
+				int length = in.readInt();
+				if (length < 0 || length > MAX_LITERAL)
+					throw new IOException("corrupt delta");
+				byte[] literal = new byte[length];
+				in.readFully(literal);
+				instructions.add(new Instruction(literal));
+			} else {
+				long offset = in.readLong();
+				int length = in.readInt();
+				if (offset < 0 || length < 0)
+					throw new IOException("corrupt delta");
+				instructions.add(new Instruction(offset, length));
+			}
+		}
+		return new FileDelta(instructions, new HashValue(hash));
+	}
+}
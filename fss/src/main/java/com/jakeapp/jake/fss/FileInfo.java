@@ -0,0 +1,59 @@
+package com.jakeapp.jake.fss;
+
+/**
+ * A file or folder of the project, with the attributes read when it was
+ * found.
+ * 
+ * @author johannes
+ * @see IFSService#walk(String)
+ */
+public class FileInfo {
+
+	public enum Type {
+		FILE, FOLDER
+	}
+
+	private final String relpath;
+
+	private final Type type;
+
+	private final long size;
+
+	private final long lastModified;
+
+	public FileInfo(String relpath, Type type, long size, long lastModified) {
+		this.relpath = relpath;
+		this.type = type;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	public String getRelpath() {
+		return relpath;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public boolean isFile() {
+		return type == Type.FILE;
+	}
+
+	public boolean isFolder() {
+		return type == Type.FOLDER;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return relpath + (isFolder() ? "/" : " (" + size + " bytes)");
+	}
+}
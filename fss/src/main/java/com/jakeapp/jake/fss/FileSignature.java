@@ -0,0 +1,163 @@
+package com.jakeapp.jake.fss;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The block checksums of a file, as in rsync: for every block a weak rolling
+ * checksum and a strong hash. Whoever has a newer version of the file can
+ * create a {@link FileDelta} from it, which only contains what is not in
+ * these blocks.
+ * 
+ * @author johannes
+ */
+public class FileSignature {
+
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	private final int blockSize;
+
+	private final long length;
+
+	private final int[] weak;
+
+	private final HashValue[] strong;
+
+	FileSignature(int blockSize, long length, int[] weak, HashValue[] strong) {
+		this.blockSize = blockSize;
+		this.length = length;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	/**
+	 * Reads the stream to its end and closes it.
+	 */
+	public static FileSignature calculate(InputStream in, int blockSize)
+			throws IOException {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("blockSize must be positive");
+		MessageDigest md = newDigest();
+		List<Integer> weak = new ArrayList<Integer>();
+		List<HashValue> strong = new ArrayList<HashValue>();
+		byte[] block = new byte[blockSize];
+		long length = 0;
+		try {
+			int n;
+			while ((n = readBlock(in, block)) > 0) {
+				weak.add(RollingChecksum.of(block, 0, n));
+				md.update(block, 0, n);
+				strong.add(new HashValue(md.digest()));
+				length += n;
+			}
+		} finally {
+			in.close();
+		}
+		int[] weakArray = new int[weak.size()];
+		for (int i = 0; i < weakArray.length; i++)
+			weakArray[i] = weak.get(i);
+		return new FileSignature(blockSize, length, weakArray, strong
+				.toArray(new HashValue[strong.size()]));
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HashValue.DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return bytes read; less than the block only at the end of the stream
+	 */
+	static int readBlock(InputStream in, byte[] block) throws IOException {
+		int n = 0;
+		while (n < block.length) {
+			int r = in.read(block, n, block.length - n);
+			if (r < 0)
+				break;
+			n += r;
+		}
+		return n;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * @return length of the signed file
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public int getBlockCount() {
+		return weak.length;
+	}
+
+	int getWeak(int block) {
+		return weak[block];
+	}
+
+	HashValue getStrong(int block) {
+		return strong[block];
+	}
+
+	/**
+	 * @return the length of the given block (only the last one may be short)
+	 */
+	int getBlockLength(int block) {
+		return (int) Math.min(blockSize, length - (long) block * blockSize);
+	}
+
+	/**
+	 * Writes the signature, to be read by {@link #readFrom(InputStream)}.
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeUTF(HashValue.DIGEST);
+		out.writeInt(blockSize);
+		out.writeLong(length);
+		out.writeInt(weak.length);
+		for (int i = 0; i < weak.length; i++) {
+			out.writeInt(weak[i]);
+			out.writeShort(strong[i].getValue().length);
+			out.write(strong[i].getValue());
+		}
+		out.flush();
+	}
+
+	public static FileSignature readFrom(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (!in.readUTF().equals(HashValue.DIGEST))
+			throw new IOException("signature uses a different hash algorithm");
+		int blockSize = in.readInt();
+		long length = in.readLong();
+		int count = in.readInt();
+		if (blockSize <= 0 || count < 0
+				|| (long) count * blockSize < length
+				|| (long) (count - 1) * blockSize >= Math.max(length, 1))
+			throw new IOException("corrupt signature");
+		int[] weak = new int[count];
+		HashValue[] strong = new HashValue[count];
+		for (int i = 0; i < count; i++) {
+			weak[i] = in.readInt();
+			int hashLength = in.readShort();
+			if (hashLength <= 0)
+				throw new IOException("corrupt signature");
+			byte[] value = new byte[hashLength];
+			in.readFully(value);
+			strong[i] = new HashValue(value);
+		}
+		return new FileSignature(blockSize, length, weak, strong);
+	}
+}
@@ -9,6 +9,20 @@ import java.util.List;
  */
 public class FileUtils {
 
+	/**
+	 * suffix of the files new content is written to before they replace the
+	 * actual file
+	 */
+	public static final String TEMP_SUFFIX = ".jake-tmp";
+
+	/**
+	 * @return whether the name is that of a file that is still being written
+	 *         and will be renamed
+	 */
+	public static boolean isTempFile(String name) {
+		return name.endsWith(TEMP_SUFFIX);
+	}
+
 	static Iterable<String> listMinusA(File f) {
 		List<String> files = new LinkedList<String>();
 		String[] fl = f.list();
@@ -0,0 +1,142 @@
+package com.jakeapp.jake.fss;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Walks a folder tree lazily, depth-first: only the folders on the current
+ * path are open, and the attributes of each entry are read once. Entries
+ * with names that are not valid for jake (and everything below them) and
+ * temporary files are left out, as are entries that vanish or can't be read
+ * while walking.
+ * 
+ * @author johannes
+ */
+class FileWalker implements Iterator<FileInfo>, Closeable {
+
+	private static final Logger log = Logger.getLogger(FileWalker.class);
+
+	private static class Frame {
+
+		final String relpath;
+
+		final DirectoryStream<Path> stream;
+
+		final Iterator<Path> entries;
+
+		Frame(String relpath, DirectoryStream<Path> stream) {
+			this.relpath = relpath;
+			this.stream = stream;
+			this.entries = stream.iterator();
+		}
+	}
+
+	private final FSService fss;
+
+	private final Deque<Frame> stack = new ArrayDeque<Frame>();
+
+	private FileInfo next = null;
+
+	/**
+	 * @param folder
+	 *            where to start
+	 * @param relpath
+	 *            relative path of folder, "" for the root
+	 */
+	FileWalker(FSService fss, File folder, String relpath) throws IOException {
+		this.fss = fss;
+		stack.push(new Frame(relpath, Files.newDirectoryStream(folder
+				.toPath())));
+	}
+
+	public boolean hasNext() {
+		if (next == null)
+			next = advance();
+		return next != null;
+	}
+
+	public FileInfo next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		FileInfo result = next;
+		next = null;
+		return result;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private FileInfo advance() {
+		while (!stack.isEmpty()) {
+			Frame frame = stack.peek();
+			if (!frame.entries.hasNext()) {
+				close(stack.pop());
+				continue;
+			}
+			Path p;
+			try {
+				p = frame.entries.next();
+			} catch (RuntimeException e) {
+				/* DirectoryIteratorException: give up on this folder */
+				log.debug("couldn't list " + frame.relpath, e);
+				close(stack.pop());
+				continue;
+			}
+			String name = p.getFileName().toString();
+			if (FileUtils.isTempFile(name))
+				continue;
+			String relpath = frame.relpath.isEmpty() ? name : frame.relpath
+					+ "/" + name;
+			if (!fss.isValidRelpath(relpath))
+				continue;
+
+			BasicFileAttributes attr;
+			try {
+				attr = Files.readAttributes(p, BasicFileAttributes.class);
+			} catch (IOException e) {
+				/* vanished or unreadable */
+				continue;
+			}
+			if (attr.isDirectory()) {
+				try {
+					stack.push(new Frame(relpath, Files.newDirectoryStream(p)));
+				} catch (IOException e) {
+					log.debug("couldn't open " + relpath, e);
+				}
+				return new FileInfo(relpath, FileInfo.Type.FOLDER, 0, attr
+						.lastModifiedTime().toMillis());
+			} else if (attr.isRegularFile()) {
+				return new FileInfo(relpath, FileInfo.Type.FILE, attr.size(),
+						attr.lastModifiedTime().toMillis());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * closes the folders still open; needed if the walk is not completed
+	 */
+	public void close() {
+		while (!stack.isEmpty())
+			close(stack.pop());
+	}
+
+	private static void close(Frame frame) {
+		try {
+			frame.stream.close();
+		} catch (IOException e) {
+		}
+	}
+}
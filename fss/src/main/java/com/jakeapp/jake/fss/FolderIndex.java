@@ -0,0 +1,291 @@
+package com.jakeapp.jake.fss;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * What the {@link FolderWatcher} knows about the project folder. There is one
+ * {@link FolderEntry} per folder, holding compact entries for the files and
+ * the names of the subfolders directly in it. Folders are addressed by their
+ * relpath, the root folder is "".
+ * <p>
+ * Deletion detection is mark-and-sweep: every scan uses a new generation;
+ * everything seen while listing a folder is marked with it, and whatever is
+ * left with an older generation afterwards is gone.
+ * </p>
+ * <p>
+ * A {@link FolderEntry} is only modified by whoever scans that folder, but may
+ * be read concurrently by queries, see {@link FolderWatcher#lookup}. Each
+ * folder remembers when a scan last verified it, and when it was last
+ * invalidated by a change made through the {@link FSService}.
+ * </p>
+ * <p>
+ * The index can be saved to a snapshot file and loaded again, so that a
+ * restart only has to stat the files instead of hashing all of them.
+ * </p>
+ * 
+ * @author johannes
+ */
+class FolderIndex {
+
+	/**
+	 * coarsest modification time resolution we expect (FAT: 2 seconds)
+	 */
+	static final long TIMESTAMP_GRANULARITY = 2000;
+
+	private static final int SNAPSHOT_MAGIC = 0x46535349;
+
+	private static final int SNAPSHOT_VERSION = 1;
+
+	static class FileEntry {
+
+		volatile long size;
+
+		volatile long lastModified;
+
+		HashValue hash;
+
+		int generation;
+
+		/*
+		 * BasicFileAttributes.fileKey(), for move detection; not in the
+		 * snapshot
+		 */
+		Object fileKey;
+
+		FileEntry(long size, long lastModified, HashValue hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	static class FolderEntry {
+
+		/**
+		 * modification time of the folder when it was listed, -1 if the
+		 * listing has to be redone
+		 */
+		long lastModified = -1;
+
+		/**
+		 * when the folder was listed
+		 */
+		long listedAt;
+
+		/**
+		 * number of files and subfolders in the last listing, to tell
+		 * whether the index is in step with it
+		 */
+		int childCount;
+
+		final Map<String, FileEntry> files = new ConcurrentHashMap<String, FileEntry>();
+
+		final Map<String, Integer> subfolders = new ConcurrentHashMap<String, Integer>();
+
+		/* System.nanoTime() of the start of the scan that last verified it */
+		private volatile long verifiedAt;
+
+		private volatile boolean verified = false;
+
+		private long invalidatedAt;
+
+		private boolean invalidated = false;
+
+		/**
+		 * the scan started at scanStart found the folder as it is in here,
+		 * unless it was invalidated since
+		 */
+		synchronized void markVerified(long scanStart) {
+			if (invalidated && invalidatedAt - scanStart >= 0)
+				return;
+			verifiedAt = scanStart;
+			verified = true;
+		}
+
+		/**
+		 * the folder (or a file in it) was just changed; the entries are not
+		 * to be trusted until a scan started after now has verified it
+		 */
+		synchronized void invalidate() {
+			verified = false;
+			invalidated = true;
+			invalidatedAt = System.nanoTime();
+		}
+
+		boolean isVerified() {
+			return verified;
+		}
+
+		long getVerifiedAt() {
+			return verifiedAt;
+		}
+	}
+
+	/* concurrent, as folders may be scanned in parallel */
+	private final Map<String, FolderEntry> folders = new ConcurrentHashMap<String, FolderEntry>();
+
+	private int generation = 0;
+
+	/**
+	 * starts a new scan
+	 * 
+	 * @return the generation to mark seen entries with
+	 */
+	int nextGeneration() {
+		return ++generation;
+	}
+
+	FolderEntry getFolder(String relpath) {
+		return folders.get(relpath);
+	}
+
+	FolderEntry getOrCreateFolder(String relpath) {
+		FolderEntry fe = folders.get(relpath);
+		if (fe == null) {
+			fe = new FolderEntry();
+			folders.put(relpath, fe);
+		}
+		return fe;
+	}
+
+	FolderEntry removeFolder(String relpath) {
+		return folders.remove(relpath);
+	}
+
+	/**
+	 * @return the entry of the file, or null if it is not known
+	 */
+	FileEntry getFile(String relpath) {
+		int i = relpath.lastIndexOf('/');
+		FolderEntry fe = folders.get(i < 0 ? "" : relpath.substring(0, i));
+		if (fe == null)
+			return null;
+		return fe.files.get(relpath.substring(i + 1));
+	}
+
+	int getFolderCount() {
+		return folders.size();
+	}
+
+	/**
+	 * writes the index to a file. The file is replaced atomically where
+	 * possible.
+	 * 
+	 * @param root
+	 *            stored to make sure the snapshot is only used for this folder
+	 */
+	void save(File snapshot, File root) throws IOException {
+		File tmp = new File(snapshot.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp))));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeUTF(root.getAbsolutePath());
+			out.writeUTF(HashValue.DIGEST);
+			out.writeInt(folders.size());
+			for (Map.Entry<String, FolderEntry> f : folders.entrySet()) {
+				FolderEntry fe = f.getValue();
+				out.writeUTF(f.getKey());
+				out.writeLong(fe.lastModified);
+				out.writeLong(fe.listedAt);
+				out.writeInt(fe.childCount);
+				out.writeInt(fe.subfolders.size());
+				for (String name : fe.subfolders.keySet())
+					out.writeUTF(name);
+				out.writeInt(fe.files.size());
+				for (Map.Entry<String, FileEntry> e : fe.files.entrySet()) {
+					FileEntry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeLong(entry.size);
+					out.writeLong(entry.lastModified);
+					if (entry.hash == null) {
+						out.writeShort(-1);
+					} else {
+						out.writeShort(entry.hash.getValue().length);
+						out.write(entry.hash.getValue());
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), snapshot.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(tmp.toPath(), snapshot.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * reads a snapshot written by {@link #save(File, File)}
+	 * 
+	 * @throws IOException
+	 *             if the snapshot is unreadable, or not made for this root
+	 *             folder and hash algorithm
+	 */
+	static FolderIndex load(File snapshot, File root) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(
+				new BufferedInputStream(new FileInputStream(snapshot))));
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC
+					|| in.readInt() != SNAPSHOT_VERSION)
+				throw new IOException("not a snapshot (of this version)");
+			if (!in.readUTF().equals(root.getAbsolutePath()))
+				throw new IOException("snapshot of a different folder");
+			if (!in.readUTF().equals(HashValue.DIGEST))
+				throw new IOException("snapshot uses a different hash");
+
+			FolderIndex index = new FolderIndex();
+			int nfolders = in.readInt();
+			for (int i = 0; i < nfolders; i++) {
+				FolderEntry fe = index.getOrCreateFolder(in.readUTF());
+				fe.lastModified = in.readLong();
+				fe.listedAt = in.readLong();
+				fe.childCount = in.readInt();
+				int nsubfolders = in.readInt();
+				for (int j = 0; j < nsubfolders; j++)
+					fe.subfolders.put(in.readUTF(), 0);
+				int nfiles = in.readInt();
+				for (int j = 0; j < nfiles; j++) {
+					String name = in.readUTF();
+					long size = in.readLong();
+					long lastModified = in.readLong();
+					HashValue hash = null;
+					int len = in.readShort();
+					if (len >= 0) {
+						byte[] value = new byte[len];
+						in.readFully(value);
+						hash = new HashValue(value);
+					}
+					fe.files.put(name, new FileEntry(size, lastModified, hash));
+				}
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	static String join(String folder, String name) {
+		if (folder.isEmpty())
+			return name;
+		return folder + '/' + name;
+	}
+}
@@ -2,188 +2,1037 @@ package com.jakeapp.jake.fss;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
 
+import com.jakeapp.jake.fss.FolderIndex.FileEntry;
+import com.jakeapp.jake.fss.FolderIndex.FolderEntry;
 import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
 import com.jakeapp.jake.fss.exceptions.NotADirectoryException;
 import com.jakeapp.jake.fss.exceptions.NotAReadableFileException;
 
 /**
- * Implementation of {@link IFSService}
+ * Keeps track of the files in a folder and notifies listeners about created,
+ * modified and deleted files. When to look where is decided by a
+ * {@link IWatcherEngine}.
  * 
  * @author johannes
- * @see IFSService
+ * @see IWatcherEngine
  */
 public class FolderWatcher {
 
 	private static final Logger log = Logger.getLogger(FolderWatcher.class);
 
-	private File rootpath;
+	/**
+	 * used when falling back to polling
+	 */
+	public static final long DEFAULT_POLLING_INTERVAL = 700;
 
-	private HashMap<File, Long> lastmodifieddates = new HashMap<File, Long>();
+	/* bounds the hints for files that are never scanned */
+	private static final int MAX_HASH_HINTS = 10000;
 
-	private HashMap<File, HashValue> hashes = new HashMap<File, HashValue>();
+	private File rootpath;
 
-	private List<File> files = new ArrayList<File>();
+	private FolderIndex index = new FolderIndex();
 
-	private Set<IModificationListener> listeners = new HashSet<IModificationListener>();
+	/* copy on write, so that listeners can be added while events are fired */
+	private Set<IModificationListener> listeners = new CopyOnWriteArraySet<IModificationListener>();
 
-	private Timer timer;
+	private IWatcherEngine engine;
 
-	private boolean isCanceled = false;
+	private volatile boolean isCanceled = false;
 
-	private long pollingInterval;
+	private boolean trustFolderTimestamps = false;
 
 	private StreamFileHashCalculator hasher = null;
 
+	private ForkJoinPool pool = null;
+
+	private File snapshotFile = null;
+
+	/* null until loadSnapshot() */
+	private Boolean fromSnapshot = null;
+
+	private HashExecutor hashExecutor = null;
+
+	private final Map<Path, HashHint> hashHints = new ConcurrentHashMap<Path, HashHint>();
+
+	/* folders looked at by the current scan, see lookup() */
+	private final Queue<FolderEntry> verified = new ConcurrentLinkedQueue<FolderEntry>();
+
+	/* for engines that are notified of changes: see setEngineIdle() */
+	private volatile boolean engineIdle = false;
+
+	private volatile boolean engineWasIdle = false;
+
+	private volatile long engineIdleSince;
+
+	/**
+	 * result of {@link #lookup(String, long)} if there is nothing at the path
+	 */
+	static final FileInfo NOT_FOUND = new FileInfo(null, null, -1, -1);
+
+	/**
+	 * watches by scanning the whole folder every <code>pollingInterval</code>
+	 * milliseconds
+	 */
 	public FolderWatcher(File rootpath, long pollingInterval)
 			throws NotADirectoryException, NoSuchAlgorithmException {
+		this(rootpath, new PollingWatcherEngine(pollingInterval));
+	}
+
+	public FolderWatcher(File rootpath, IWatcherEngine engine)
+			throws NotADirectoryException, NoSuchAlgorithmException {
 
 		if (!rootpath.exists() || !rootpath.isDirectory()) {
 			throw new NotADirectoryException();
 		}
 
 		this.rootpath = rootpath;
-		this.pollingInterval = pollingInterval;
+		this.engine = engine;
 
 		hasher = new StreamFileHashCalculator();
+	}
+
+	public File getRootpath() {
+		return rootpath;
+	}
+
+	/**
+	 * Folders whose modification time did not change since they were last
+	 * listed are not listed again, only their known files are checked. If
+	 * the folder timestamps are trusted, the files in unchanged folders are
+	 * not even looked at. This misses in-place modifications of files that
+	 * do not touch the folder, so it is off by default. Folders the engine
+	 * was notified about are always looked into.
+	 */
+	public void setTrustFolderTimestamps(boolean trustFolderTimestamps) {
+		this.trustFolderTimestamps = trustFolderTimestamps;
+	}
+
+	public boolean isTrustFolderTimestamps() {
+		return trustFolderTimestamps;
+	}
+
+	/**
+	 * Scans subfolders in parallel using a pool of the given size; 1 (the
+	 * default) scans on the calling thread. Useful for high-latency (network)
+	 * filesystems. The events are the same and come in the same order either
+	 * way.
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		if (parallelism > 1)
+			pool = new ForkJoinPool(parallelism);
+	}
+
+	public synchronized int getParallelism() {
+		if (pool == null)
+			return 1;
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Remembers what the watcher knows in the given file. If it exists,
+	 * {@link #initialRun()} starts from it and only reports (and hashes) what
+	 * changed since. It is written after the initial run and on
+	 * {@link #cancel()}. Must not be inside the watched folder.
+	 */
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
 
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * Hash created and modified files on the given executor instead of on the
+	 * scanning thread. The events of a scan are then reported in the order
+	 * the hashes arrive (deletions first). null (the default) hashes on the
+	 * scanning threads. Either way, created files are only hashed if they
+	 * turn out not to be moves with a known hash.
+	 */
+	public synchronized void setHashExecutor(HashExecutor hashExecutor) {
+		this.hashExecutor = hashExecutor;
+	}
+
+	/**
+	 * The file was just written with this content. If the next scan finds it
+	 * with this size and modification time, the hash is taken from here
+	 * instead of reading the file; it is still reported as usual.
+	 */
+	public void addHashHint(File f, long size, long lastModified,
+			HashValue hash) {
+		if (hashHints.size() >= MAX_HASH_HINTS)
+			hashHints.clear();
+		hashHints.put(f.toPath().toAbsolutePath().normalize(), new HashHint(
+				size, lastModified, hash));
+	}
+
+	/**
+	 * Called by engines that are notified of changes within milliseconds:
+	 * idle means that every change they were notified of has been scanned,
+	 * so the index is up to date (as far as the notifications go) until they
+	 * get busy again. Engines with a noticeable delay must not call this, as
+	 * the index would be trusted regardless of the staleness asked for.
+	 */
+	void setEngineIdle(boolean idle) {
+		if (idle) {
+			engineIdleSince = System.nanoTime();
+			engineWasIdle = true;
+		}
+		engineIdle = idle;
+	}
+
+	/**
+	 * Answers from the index what is at a path, if the index is sure about it.
+	 * A folder is trusted if a scan started at most maxStaleness milliseconds
+	 * ago found it as it is in the index (or if the engine is notified of
+	 * changes and had nothing to do since then), and it was not invalidated
+	 * since. Only regular files and folders are indexed.
+	 * 
+	 * @return the file or folder, {@link #NOT_FOUND} if there is nothing, or
+	 *         null if the index can't tell
+	 */
+	FileInfo lookup(String relpath, long maxStaleness) {
+		String path = normalize(relpath);
+		if (path == null || isCanceled)
+			return null;
+		long now = System.nanoTime();
+		if (path.isEmpty()) {
+			FolderEntry root = index.getFolder("");
+			if (!isFresh(root, now, maxStaleness))
+				return null;
+			return new FileInfo("", FileInfo.Type.FOLDER, 0, root.lastModified);
+		}
+
+		int i = path.lastIndexOf('/');
+		String name = path.substring(i + 1);
+		if (FileUtils.isTempFile(name))
+			return null;
+		FolderEntry parent = index.getFolder(i < 0 ? "" : path.substring(0,
+				i));
+		if (!isFresh(parent, now, maxStaleness))
+			return null;
+		FileEntry entry = parent.files.get(name);
+		if (entry != null)
+			return new FileInfo(path, FileInfo.Type.FILE, entry.size,
+					entry.lastModified);
+		if (parent.subfolders.containsKey(name)) {
+			FolderEntry fe = index.getFolder(path);
+			return new FileInfo(path, FileInfo.Type.FOLDER, 0, fe == null ? -1
+					: fe.lastModified);
+		}
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Lists a folder from the index, like {@link #lookup(String, long)}.
+	 * 
+	 * @return the names of the files and subfolders, or null if the index
+	 *         can't tell
+	 */
+	List<String> list(String relpath, long maxStaleness) {
+		String path = normalize(relpath);
+		if (path == null || isCanceled)
+			return null;
+		FolderEntry fe = index.getFolder(path);
+		if (!isFresh(fe, System.nanoTime(), maxStaleness))
+			return null;
+		List<String> names = new ArrayList<String>(fe.files.keySet());
+		names.addAll(fe.subfolders.keySet());
+		return names;
+	}
+
+	/**
+	 * Something was changed at f from outside the watcher: the folder (if it
+	 * is one) and its parents are not answered from the index until they are
+	 * scanned again.
+	 */
+	void invalidate(File f) {
+		String relpath = toRelpath(f);
+		while (relpath != null) {
+			FolderEntry fe = index.getFolder(relpath);
+			if (fe != null)
+				fe.invalidate();
+			if (relpath.isEmpty())
+				break;
+			int i = relpath.lastIndexOf('/');
+			relpath = i < 0 ? "" : relpath.substring(0, i);
+		}
+	}
+
+	private boolean isFresh(FolderEntry fe, long now, long maxStaleness) {
+		if (fe == null || !fe.isVerified())
+			return false;
+		long at = fe.getVerifiedAt();
+		if (engineWasIdle) {
+			long synced = engineIdle ? now : engineIdleSince;
+			if (synced - at > 0)
+				at = synced;
+		}
+		return now - at <= maxStaleness * 1000000;
+	}
+
+	/**
+	 * @return the relpath as used in the index, or null if it is not
+	 *         in the plain form
+	 */
+	private static String normalize(String relpath) {
+		int start = 0, end = relpath.length();
+		while (start < end && relpath.charAt(start) == '/')
+			start++;
+		while (end > start && relpath.charAt(end - 1) == '/')
+			end--;
+		String path = relpath.substring(start, end);
+		if (path.contains("//") || path.equals(".") || path.startsWith("./")
+				|| path.contains("/./") || path.endsWith("/."))
+			return null;
+		return path;
+	}
+
+	/**
+	 * Loads the snapshot file, if there is one, as the starting point of
+	 * {@link #initialRun()}. Called by it, if not called before.
+	 * 
+	 * @return whether the initial run only reports what changed since the
+	 *         snapshot
+	 */
+	public synchronized boolean loadSnapshot() {
+		if (fromSnapshot != null)
+			return fromSnapshot;
+		fromSnapshot = false;
+		if (snapshotFile != null && snapshotFile.exists()) {
+			try {
+				index = FolderIndex.load(snapshotFile, rootpath);
+				fromSnapshot = true;
+				log.info("loaded snapshot " + snapshotFile + " with "
+						+ index.getFolderCount() + " folders");
+			} catch (IOException e) {
+				log.warn("ignoring snapshot " + snapshotFile, e);
+				index = new FolderIndex();
+			}
+		}
+		return fromSnapshot;
 	}
 
 	public void initialRun() {
-		FolderScanTask fsc = new FolderScanTask();
-		fsc.run();
+		loadSnapshot();
+		scan(rootpath, true);
+		saveSnapshot();
 	}
 
+	/**
+	 * writes the snapshot file now, if one is set
+	 */
+	public synchronized void saveSnapshot() {
+		if (snapshotFile == null)
+			return;
+		try {
+			index.save(snapshotFile, rootpath);
+		} catch (IOException e) {
+			log.warn("couldn't write snapshot " + snapshotFile, e);
+		}
+	}
+
+	/**
+	 * starts the engine. If it is not available, polling is used instead.
+	 */
 	public void run() {
-		timer = new Timer(true);
-		timer.schedule(new FolderScanTask(), 0, pollingInterval);
+		try {
+			engine.start(this);
+		} catch (IOException e) {
+			log.warn("watcher engine (" + engine
+					+ ") not available, falling back to polling", e);
+			engine = new PollingWatcherEngine(DEFAULT_POLLING_INTERVAL);
+			try {
+				engine.start(this);
+			} catch (IOException e1) {
+				log.error("polling failed", e1);
+			}
+		}
 	}
 
 	public void addListener(IModificationListener l) {
-		synchronized (listeners) {
-			listeners.add(l);
-		}
+		listeners.add(l);
 	}
 
 	public void removeListener(IModificationListener l) {
-		synchronized (listeners) {
-			listeners.remove(l);
-		}
+		listeners.remove(l);
 	}
 
 	public void cancel() {
 		isCanceled = true;
-		if (timer != null)
-			timer.cancel();
+		engine.cancel();
+		ForkJoinPool p = pool;
+		if (p != null)
+			p.shutdown();
+		saveSnapshot();
 	}
 
-	private class FolderScanTask extends TimerTask {
+	/**
+	 * scans the folder for modified, created and deleted files. Called by the
+	 * engine; scans never run concurrently. The events are fired when the
+	 * scan is done, in the order of the folder listings.
+	 * 
+	 * @param folder
+	 *            the folder to scan, within the rootpath
+	 * @param recursive
+	 *            whether to look into subfolders. Deleted subfolders are
+	 *            detected anyway.
+	 */
+	void scan(File folder, boolean recursive) {
+		scan(Collections.singletonMap(folder, recursive), false);
+	}
+
+	/**
+	 * scans several folders as one batch, like {@link #scan(File, boolean)}.
+	 * The events are fired when all of them are done, so that files moved
+	 * between them are reported as moves.
+	 * 
+	 * @param folders
+	 *            the folders, and whether to scan them recursively
+	 * @param notified
+	 *            whether the engine was told that something changed in them;
+	 *            then the files are looked at even if folder timestamps are
+	 *            trusted
+	 */
+	synchronized void scan(Map<File, Boolean> folders, boolean notified) {
+		if (isCanceled)
+			return;
+		if (!rootpath.isDirectory()) {
+			log.warn("Bug: FolderWatcher was not shutdown, doing "
+					+ "it myself.");
+			cancel();
+			return;
+		}
+
+		long scanStart = System.nanoTime();
+		List<Change> changes = new ArrayList<Change>();
+		for (Map.Entry<File, Boolean> e : folders.entrySet()) {
+			if (isCanceled)
+				return;
+			scanFolder(e.getKey(), e.getValue(), trustFolderTimestamps
+					&& !notified, changes);
+		}
+
+		detectMoves(changes);
+		fire(changes);
+		scanCompleted();
+		/* only now, as modified files are updated in the index when hashed */
+		FolderEntry fe;
+		while ((fe = verified.poll()) != null) {
+			if (!isCanceled)
+				fe.markVerified(scanStart);
+		}
+	}
+
+	private void scanFolder(File folder, boolean recursive, boolean trust,
+			List<Change> changes) {
+		String relpath = toRelpath(folder);
+		if (relpath == null)
+			return;
+		int generation = index.nextGeneration();
+		BasicFileAttributes attr = readAttributes(folder);
+		if (attr != null && attr.isDirectory()) {
+			FolderScan task = new FolderScan(relpath, folder, attr, recursive,
+					trust, generation);
+			if (pool != null)
+				changes.addAll(pool.invoke(task));
+			else
+				changes.addAll(task.invoke());
+		} else {
+			forgetFolder(relpath, folder, changes);
+		}
+	}
+
+	/**
+	 * Finds created files that are deleted files of the same scan, moved:
+	 * same size and modification time, and either the same file key (then
+	 * the old hash is taken instead of reading the file) or the same hash.
+	 * Deletions that may be moves are held back until the hash of the
+	 * created file is known.
+	 */
+	private static void detectMoves(List<Change> changes) {
+		Map<Long, List<Change>> deleted = new HashMap<Long, List<Change>>();
+		for (Change c : changes) {
+			if (c.action != ModifyActions.DELETED || c.removed == null)
+				continue;
+			List<Change> sameSize = deleted.get(c.removed.size);
+			if (sameSize == null) {
+				sameSize = new ArrayList<Change>();
+				deleted.put(c.removed.size, sameSize);
+			}
+			sameSize.add(c);
+		}
+		if (deleted.isEmpty())
+			return;
+
+		for (Change c : changes) {
+			if (c.action != ModifyActions.CREATED)
+				continue;
+			List<Change> sameSize = deleted.get(c.size);
+			if (sameSize == null)
+				continue;
+			List<Change> candidates = null;
+			for (Change d : sameSize) {
+				if (d.claimed || d.removed.lastModified != c.lastModified)
+					continue;
+				if (c.fileKey != null && c.fileKey.equals(d.removed.fileKey)) {
+					c.movedFrom = d;
+					d.claimed = true;
+					if (c.hash == null && d.removed.hash != null) {
+						c.hash = d.removed.hash;
+						c.entry.hash = c.hash;
+					}
+					candidates = null;
+					break;
+				}
+				if (d.removed.hash == null)
+					continue;
+				if (candidates == null)
+					candidates = new ArrayList<Change>();
+				candidates.add(d);
+			}
+			if (candidates != null) {
+				c.moveCandidates = candidates;
+				for (Change d : candidates)
+					d.held = true;
+			}
+		}
+	}
+
+	/**
+	 * Reports the changes. Files still to be hashed are hashed together on
+	 * the scanning pool, or handed to the {@link HashExecutor} in one batch
+	 * and reported as their hashes arrive.
+	 * Deletions that turned out not to be moves come last.
+	 */
+	private void fire(List<Change> changes) {
+		List<Change> pending = new ArrayList<Change>();
+		if (hashExecutor == null) {
+			/* created files, hashed only now that the moves are known */
+			for (Change c : changes) {
+				if (c.needsHash() && c.hash == null && !c.hashFailed)
+					pending.add(c);
+			}
+			hashAll(pending);
+			for (Change c : pending)
+				c.resolve();
+			pending.clear();
+		}
+		for (Change c : changes) {
+			if (c.needsHash() && c.hash == null && !c.hashFailed)
+				pending.add(c);
+			else if (!c.held && !c.claimed)
+				report(c);
+		}
+		if (!pending.isEmpty()) {
+			final BlockingQueue<Change> done = new LinkedBlockingQueue<Change>();
+			for (final Change c : pending) {
+				hashExecutor.submit(c.file).whenComplete(
+						new BiConsumer<HashValue, Throwable>() {
+
+							public void accept(HashValue hash, Throwable e) {
+								c.hash = hash;
+								c.hashFailed = e != null || hash == null;
+								done.add(c);
+							}
+						});
+			}
+			for (int i = 0; i < pending.size(); i++) {
+				Change c;
+				try {
+					c = done.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (c.resolve())
+					report(c);
+			}
+		}
+		for (Change c : changes) {
+			if (c.held && !c.claimed)
+				changeHappened(c.file, c.action);
+		}
+	}
+
+	/**
+	 * reports a change, as a move if it is one
+	 */
+	private void report(Change c) {
+		Change from = c.movedFrom;
+		if (from == null && c.moveCandidates != null && c.hash != null) {
+			for (Change d : c.moveCandidates) {
+				if (!d.claimed && c.hash.equals(d.removed.hash)) {
+					d.claimed = true;
+					from = d;
+					break;
+				}
+			}
+		}
+		if (from != null)
+			moveHappened(from.file, c.file);
+		else
+			changeHappened(c.file, c.action);
+	}
+
+	/**
+	 * hashes the files on the scanning pool, if there is one
+	 */
+	private void hashAll(List<Change> changes) {
+		ForkJoinPool p = pool;
+		if (p == null || changes.size() == 1) {
+			for (Change c : changes)
+				hash(c);
+			return;
+		}
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Change c : changes) {
+			tasks.add(new Callable<Void>() {
+
+				public Void call() {
+					hash(c);
+					return null;
+				}
+			});
+		}
+		try {
+			p.invokeAll(tasks);
+		} catch (RejectedExecutionException e) {
+			/* pool replaced meanwhile */
+			for (Change c : changes) {
+				if (c.hash == null && !c.hashFailed)
+					hash(c);
+			}
+		}
+	}
+
+	private void hash(Change c) {
+		try {
+			c.hash = calculateHash(c.file);
+			/* null if reading failed half-way */
+			c.hashFailed = c.hash == null;
+		} catch (NotAReadableFileException e) {
+			c.hashFailed = true;
+		}
+	}
+
+	/**
+	 * @return the relpath of a file within the rootpath, "" for the
+	 *         rootpath and null if it is outside
+	 */
+	private String toRelpath(File f) {
+		String root = rootpath.getPath();
+		String path = f.getPath();
+		if (path.equals(root))
+			return "";
+		if (!path.startsWith(root + File.separator))
+			return null;
+		return path.substring(root.length() + 1).replace(File.separatorChar,
+				'/');
+	}
+
+	/**
+	 * @return the attributes or null if the file is gone or unreadable
+	 */
+	private static BasicFileAttributes readAttributes(File f) {
+		try {
+			return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * whether the folder can be skipped because its timestamp says nothing
+	 * was added or removed. Timestamps too close to the listing are not
+	 * trusted, as a change right after the listing may not have moved it.
+	 */
+	private static boolean isUnchanged(FolderEntry fe, long lastModified) {
+		return fe.lastModified == lastModified
+				&& fe.listedAt - lastModified > FolderIndex.TIMESTAMP_GRANULARITY;
+	}
+
+	/**
+	 * whether the index holds as many entries for the folder as its last
+	 * listing found; not so after an interrupted scan, for instance
+	 */
+	private static boolean isComplete(FolderEntry fe) {
+		return fe.files.size() + fe.subfolders.size() == fe.childCount;
+	}
+
+	/**
+	 * the hash of a file as written, see
+	 * {@link FolderWatcher#addHashHint(File, long, long, HashValue)}
+	 */
+	private static class HashHint {
+
+		final long size;
+
+		final long lastModified;
+
+		final HashValue hash;
+
+		HashHint(long size, long lastModified, HashValue hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * A change found by a scan. Created and possibly modified files have to be
+	 * hashed before the change is final, see {@link #resolve()}.
+	 */
+	private static class Change {
+
+		final File file;
+
+		final ModifyActions action;
+
+		/* for files to be hashed: */
+		final FileEntry entry;
+
+		final long size;
+
+		final long lastModified;
+
+		HashValue hash;
+
+		boolean hashFailed;
+
+		/* for deleted files: the entry they had */
+		FileEntry removed;
+
+		/* for created files, to detect moves: */
+		Object fileKey;
+
+		Change movedFrom;
+
+		List<Change> moveCandidates;
+
+		/* for deleted files that may have been moved: */
+		boolean held;
+
+		boolean claimed;
+
+		Change(File file, ModifyActions action) {
+			this(file, action, null, 0, 0);
+		}
+
+		static Change deleted(File file, FileEntry removed) {
+			Change c = new Change(file, ModifyActions.DELETED);
+			c.removed = removed;
+			return c;
+		}
+
+		Change(File file, ModifyActions action, FileEntry entry, long size,
+				long lastModified) {
+			this.file = file;
+			this.action = action;
+			this.entry = entry;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		boolean needsHash() {
+			return entry != null;
+		}
 
 		/**
-		 * scans the folder for modified files
+		 * updates the entry with the new hash
+		 * 
+		 * @return whether the change is real and has to be reported
 		 */
+		boolean resolve() {
+			if (action == ModifyActions.CREATED) {
+				/* reported even if it couldn't be hashed */
+				entry.hash = hash;
+				return true;
+			}
+			if (hashFailed) {
+				if (log.isDebugEnabled())
+					log.debug("couldn't calculate hash for " + file);
+				/* entry stays as it was, so we try again next time */
+				return false;
+			}
+			entry.lastModified = lastModified;
+			entry.size = size;
+			if (!hash.equals(entry.hash)) {
+				entry.hash = hash;
+				return true;
+			} else {
+				if (log.isDebugEnabled())
+					log.debug("file : " + file + " hasn't changed (by hash)");
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * finds modified, newly created and deleted files in one folder. Each
+	 * subfolder is handled by its own task, which are forked when scanning
+	 * in parallel. Only this task touches the {@link FolderEntry} of its
+	 * folder.
+	 */
+	@SuppressWarnings("serial")
+	private class FolderScan extends RecursiveTask<List<Change>> {
+
+		private final String relpath;
+
+		private final File folder;
+
+		private final BasicFileAttributes folderAttr;
+
+		private final boolean recursive;
+
+		/* skip the files of unchanged folders, see setTrustFolderTimestamps() */
+		private final boolean trust;
+
+		private final int generation;
+
+		/* changes and subfolder tasks, in listing order */
+		private final List<Object> parts = new ArrayList<Object>();
+
+		private final List<FolderScan> subtasks = new ArrayList<FolderScan>();
+
+		FolderScan(String relpath, File folder, BasicFileAttributes folderAttr,
+				boolean recursive, boolean trust, int generation) {
+			this.relpath = relpath;
+			this.folder = folder;
+			this.folderAttr = folderAttr;
+			this.recursive = recursive;
+			this.trust = trust;
+			this.generation = generation;
+		}
+
 		@Override
-		public void run() {
-			if (!rootpath.isDirectory()) {
-				System.err
-						.println("Bug: FolderScanTask was not shutdown, doing "
-								+ "it myself.");
-				System.err.println("FolderScanTask was not shutdown, doing "
-						+ "it myself.");
-				cancel();
-				return;
+		protected List<Change> compute() {
+			List<Change> changes = new ArrayList<Change>();
+			if (isCanceled)
+				return changes;
+			FolderEntry fe = index.getOrCreateFolder(relpath);
+			long lastModified = folderAttr.lastModifiedTime().toMillis();
+			if (!(isUnchanged(fe, lastModified) && isComplete(fe)
+					&& checkKnownEntries(fe))) {
+				/*
+				 * changes already resolved updated their entries, so the
+				 * listing won't find them again: keep them
+				 */
+				Iterator<Object> it = parts.iterator();
+				while (it.hasNext()) {
+					Object part = it.next();
+					if (!(part instanceof Change)
+							|| ((Change) part).hash == null)
+						it.remove();
+				}
+				subtasks.clear();
+				listFolder(fe, lastModified);
 			}
 
-			checkFolder(rootpath);
+			verified.add(fe);
+
+			if (pool != null)
+				invokeAll(subtasks);
+			else
+				for (FolderScan t : subtasks)
+					t.invoke();
+			for (Object part : parts) {
+				if (part instanceof Change)
+					changes.add((Change) part);
+				else
+					changes.addAll(((FolderScan) part).join());
+			}
 			if (isCanceled)
-				return;
+				return changes;
 
-			/* check for deleted files */
-			for (int i = files.size() - 1; i >= 0; i--) {
-				File f = files.get(i);
-				if (!f.exists()) {
-					lastmodifieddates.remove(f);
-					hashes.remove(f);
-					files.remove(i);
-					changeHappened(f, ModifyActions.DELETED);
+			/* sweep: whatever was not seen now is gone */
+			Iterator<Map.Entry<String, FileEntry>> it = fe.files.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, FileEntry> e = it.next();
+				if (e.getValue().generation != generation) {
+					it.remove();
+					changes.add(Change.deleted(new File(folder, e.getKey()), e
+							.getValue()));
+				}
+			}
+			Iterator<Map.Entry<String, Integer>> dit = fe.subfolders
+					.entrySet().iterator();
+			while (dit.hasNext()) {
+				Map.Entry<String, Integer> e = dit.next();
+				if (e.getValue() != generation) {
+					dit.remove();
+					forgetFolder(FolderIndex.join(relpath, e.getKey()),
+							new File(folder, e.getKey()), changes);
+				}
+			}
+			return changes;
+		}
+
+		private void listFolder(FolderEntry fe, long lastModified) {
+			long listedAt = System.currentTimeMillis();
+			Iterable<String> fl = FileUtils.listMinusA(folder);
+			if (log.isDebugEnabled())
+				log.debug("got folder list for " + folder);
+			fe.lastModified = lastModified;
+			fe.listedAt = listedAt;
+			fe.childCount = 0;
+			for (String name : fl) {
+				/* reported once renamed */
+				if (FileUtils.isTempFile(name))
+					continue;
+				File f = new File(folder, name);
+				BasicFileAttributes attr = readAttributes(f);
+				if (attr == null) {
+					/* vanished or unreadable: treated as not there for now */
+					fe.lastModified = -1;
+					continue;
+				}
+				if (attr.isDirectory()) {
+					fe.childCount++;
+					fe.subfolders.put(name, generation);
+					if (recursive)
+						addSubfolder(name, f, attr);
+				} else if (attr.isRegularFile()) {
+					fe.childCount++;
+					checkFile(fe, name, f, attr);
 				}
 			}
 		}
 
 		/**
-		 * recursively finds modified and newly created files
+		 * checks the files and subfolders already known in a folder that has
+		 * not changed
 		 * 
-		 * @param folder
-		 *            important: must be a existing directory!
+		 * @return false if something is off and the folder has to be listed
 		 */
-		private void checkFolder(File folder) {
-			if (isCanceled)
-				return;
-			Iterable<File> fl = FileUtils.listFilesMinusA(folder);
+		private boolean checkKnownEntries(FolderEntry fe) {
 			if (log.isDebugEnabled())
-				log.debug("got folder list for " + folder);
-			for (File f : fl) {
-				if (f.isDirectory()) {
-					checkFolder(f);
+				log.debug("folder unchanged: " + folder);
+			for (Map.Entry<String, FileEntry> e : fe.files.entrySet()) {
+				if (trust) {
+					e.getValue().generation = generation;
+					continue;
 				}
-				if (f.isFile()) {
-					if (log.isDebugEnabled())
-						log.debug("file : " + f);
-					if (files.contains(f)) {
-						if (f.lastModified() != lastmodifieddates.get(f)) {
-							HashValue newhash = null;
-							try {
-								newhash = calculateHash(f);
-							} catch (NotAReadableFileException e) {
-								if (log.isDebugEnabled())
-									log.debug("couldn't calculate hash for "
-											+ f, e);
-								continue;
-							}
+				File f = new File(folder, e.getKey());
+				BasicFileAttributes attr = readAttributes(f);
+				if (attr == null || !attr.isRegularFile())
+					return false;
+				checkFile(fe, e.getKey(), f, attr);
+			}
+			for (Map.Entry<String, Integer> e : fe.subfolders.entrySet()) {
+				e.setValue(generation);
+				if (!recursive)
+					continue;
+				File f = new File(folder, e.getKey());
+				BasicFileAttributes attr = readAttributes(f);
+				if (attr == null || !attr.isDirectory())
+					return false;
+				addSubfolder(e.getKey(), f, attr);
+			}
+			return true;
+		}
 
-							lastmodifieddates.put(f, f.lastModified());
-							if (!newhash.equals(hashes.get(f))) {
-								hashes.put(f, newhash);
-								changeHappened(f, ModifyActions.MODIFIED);
-							} else {
-								if (log.isDebugEnabled())
-									log.debug("file : " + f
-											+ " hasn't changed (by hash)");
-							}
-						} else {
-							if (log.isDebugEnabled())
-								log.debug("file : " + f
-										+ " hasn't changed (by date)");
-						}
-					} else {
-						HashValue newhash = null;
-						try {
-							newhash = calculateHash(f);
-						} catch (NotAReadableFileException e) {
-							if (log.isDebugEnabled())
-								log.debug(
-										"couldn't calculate hash for new file "
-												+ f, e);
-						}
-
-						lastmodifieddates.put(f, f.lastModified());
-						hashes.put(f, newhash);
-						files.add(f);
-
-						changeHappened(f, ModifyActions.CREATED);
-					}
+		private void addSubfolder(String name, File f, BasicFileAttributes attr) {
+			FolderScan t = new FolderScan(FolderIndex.join(relpath, name), f,
+					attr, true, trust, generation);
+			subtasks.add(t);
+			parts.add(t);
+		}
+
+		private void checkFile(FolderEntry fe, String name, File f,
+				BasicFileAttributes attr) {
+			if (log.isDebugEnabled())
+				log.debug("file : " + f);
+			long lastModified = attr.lastModifiedTime().toMillis();
+			long size = attr.size();
+			FileEntry entry = fe.files.get(name);
+			Change c;
+			if (entry != null) {
+				entry.generation = generation;
+				entry.fileKey = attr.fileKey();
+				if (lastModified == entry.lastModified && size == entry.size) {
+					if (log.isDebugEnabled())
+						log.debug("file : " + f + " hasn't changed (by date)");
+					return;
 				}
+				c = new Change(f, ModifyActions.MODIFIED, entry, size,
+						lastModified);
+			} else {
+				entry = new FileEntry(size, lastModified, null);
+				entry.generation = generation;
+				entry.fileKey = attr.fileKey();
+				fe.files.put(name, entry);
+				c = new Change(f, ModifyActions.CREATED, entry, size,
+						lastModified);
+				c.fileKey = entry.fileKey;
+			}
+
+			HashHint hint = hashHints.isEmpty() ? null : hashHints.remove(f
+					.toPath().toAbsolutePath().normalize());
+			if (hint != null && hint.size == size
+					&& hint.lastModified == lastModified) {
+				c.hash = hint.hash;
+				if (!c.resolve())
+					return;
+			} else if (hashExecutor == null
+					&& c.action == ModifyActions.MODIFIED) {
+				/*
+				 * hash right here, in this (possibly parallel) task; created
+				 * files wait until moves are detected
+				 */
+				hash(c);
+				if (!c.resolve())
+					return;
 			}
+			parts.add(c);
+		}
+	}
+
+	/**
+	 * removes a folder that is gone, reporting all files within as deleted
+	 */
+	private void forgetFolder(String relpath, File folder, List<Change> changes) {
+		FolderEntry fe = index.removeFolder(relpath);
+		if (fe == null)
+			return;
+		for (String name : fe.subfolders.keySet()) {
+			forgetFolder(FolderIndex.join(relpath, name),
+					new File(folder, name), changes);
+		}
+		for (Map.Entry<String, FileEntry> e : fe.files.entrySet()) {
+			changes.add(Change.deleted(new File(folder, e.getKey()), e
+					.getValue()));
 		}
 	}
 
@@ -195,15 +1044,31 @@ public class FolderWatcher {
 		}
 	}
 
+	private void moveHappened(File from, File to) {
+		if (isCanceled)
+			return;
+		if (log.isDebugEnabled())
+			log.debug("moved " + from + " to " + to);
+		for (IModificationListener l : listeners) {
+			l.fileMoved(from, to);
+		}
+	}
+
+	private void scanCompleted() {
+		if (isCanceled)
+			return;
+		for (IModificationListener l : listeners) {
+			l.scanCompleted();
+		}
+	}
+
 	private void changeHappened(File f, ModifyActions event) {
 		if (isCanceled)
 			return;
 		if (log.isDebugEnabled())
 			log.debug("event " + event + " on file " + f);
-		synchronized (listeners) {
-			for (IModificationListener l : listeners) {
-				l.fileModified(f, event);
-			}
+		for (IModificationListener l : listeners) {
+			l.fileModified(f, event);
 		}
 	}
 }
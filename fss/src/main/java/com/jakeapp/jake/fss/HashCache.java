@@ -0,0 +1,266 @@
+package com.jakeapp.jake.fss;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers file hashes, keyed by path and validated by size, modification
+ * time and (where the platform has one) file key/inode. A hit means the file
+ * does not have to be read.
+ * <p>
+ * The most recently used entries are kept in memory. Optionally, every entry
+ * is also written to a cache folder (one small file per path), which
+ * survives restarts.
+ * </p>
+ * 
+ * @author johannes
+ */
+public class HashCache {
+
+	private static final Logger log = Logger.getLogger(HashCache.class);
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static class Entry {
+
+		final long size;
+
+		final long lastModified;
+
+		final String fileKey;
+
+		final String algorithm;
+
+		final HashValue hash;
+
+		Entry(long size, long lastModified, String fileKey, String algorithm,
+				HashValue hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.algorithm = algorithm;
+			this.hash = hash;
+		}
+
+		boolean matches(long size, long lastModified, String fileKey) {
+			return this.size == size && this.lastModified == lastModified
+					&& this.fileKey.equals(fileKey)
+					&& this.algorithm.equals(HashValue.DIGEST);
+		}
+	}
+
+	private final Map<String, Entry> memory;
+
+	private final File diskDir;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * in-memory only
+	 */
+	public HashCache(int capacity) {
+		this(capacity, null);
+	}
+
+	/**
+	 * @param capacity
+	 *            number of entries kept in memory
+	 * @param diskDir
+	 *            folder to keep all entries in, or null
+	 */
+	@SuppressWarnings("serial")
+	public HashCache(final int capacity, File diskDir) {
+		this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+		this.diskDir = diskDir;
+		if (diskDir != null)
+			diskDir.mkdirs();
+	}
+
+	/**
+	 * @param fileKey
+	 *            the file key (BasicFileAttributes.fileKey()), may be null
+	 * @return the hash, if it is known for exactly this version of the file
+	 */
+	public HashValue get(String path, long size, long lastModified,
+			Object fileKey) {
+		String key = String.valueOf(fileKey);
+		Entry e;
+		synchronized (memory) {
+			e = memory.get(path);
+		}
+		if (e == null && diskDir != null) {
+			e = readFromDisk(path);
+			if (e != null) {
+				synchronized (memory) {
+					memory.put(path, e);
+				}
+			}
+		}
+		if (e != null && e.matches(size, lastModified, key)) {
+			hits.incrementAndGet();
+			return e.hash;
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Remembers the hash. Files modified too recently are not remembered, as
+	 * another change might not move the timestamp.
+	 */
+	public void put(String path, long size, long lastModified, Object fileKey,
+			HashValue hash) {
+		if (hash == null
+				|| System.currentTimeMillis() - lastModified <= FolderIndex.TIMESTAMP_GRANULARITY)
+			return;
+		Entry e = new Entry(size, lastModified, String.valueOf(fileKey),
+				HashValue.DIGEST, hash);
+		synchronized (memory) {
+			memory.put(path, e);
+		}
+		if (diskDir != null)
+			writeToDisk(path, e);
+	}
+
+	/**
+	 * forgets the hash, also on disk; for files that are gone
+	 */
+	public void remove(String path) {
+		synchronized (memory) {
+			memory.remove(path);
+		}
+		if (diskDir != null)
+			getDiskFile(path).delete();
+	}
+
+	/**
+	 * empties the memory
+	 */
+	public void clear() {
+		synchronized (memory) {
+			memory.clear();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public int getSize() {
+		synchronized (memory) {
+			return memory.size();
+		}
+	}
+
+	private File getDiskFile(String path) {
+		String name;
+		try {
+			name = new HashValue(MessageDigest.getInstance("SHA-1").digest(
+					path.getBytes("UTF-8"))).toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return new File(new File(diskDir, name.substring(0, 2)),
+				name.substring(2));
+	}
+
+	/**
+	 * @return the entry, or null if there is none. Broken entries are
+	 *         deleted.
+	 */
+	private Entry readFromDisk(String path) {
+		File f = getDiskFile(path);
+		DataInputStream in;
+		try {
+			in = new DataInputStream(new FileInputStream(f));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		Entry e = null;
+		boolean broken = false;
+		try {
+			if (!in.readUTF().equals(path))
+				return null;
+			long size = in.readLong();
+			long lastModified = in.readLong();
+			String fileKey = in.readUTF();
+			String algorithm = in.readUTF();
+			int length = in.readShort();
+			if (length <= 0) {
+				log.debug("broken cache entry " + f + ": hash length "
+						+ length);
+				broken = true;
+			} else {
+				byte[] value = new byte[length];
+				in.readFully(value);
+				e = new Entry(size, lastModified, fileKey, algorithm,
+						new HashValue(value));
+			}
+		} catch (IOException ex) {
+			log.debug("broken cache entry " + f, ex);
+			broken = true;
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ex) {
+			}
+		}
+		if (broken && !f.delete())
+			log.warn("couldn't delete broken cache entry " + f);
+		return e;
+	}
+
+	private void writeToDisk(String path, Entry e) {
+		File f = getDiskFile(path);
+		f.getParentFile().mkdirs();
+		File tmp = new File(f.getPath() + "." + Thread.currentThread().getId());
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					tmp));
+			try {
+				out.writeUTF(path);
+				out.writeLong(e.size);
+				out.writeLong(e.lastModified);
+				out.writeUTF(e.fileKey);
+				out.writeUTF(e.algorithm);
+				out.writeShort(e.hash.getValue().length);
+				out.write(e.hash.getValue());
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), f.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException ex) {
+			log.warn("couldn't write cache entry " + f, ex);
+			tmp.delete();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.jakeapp.jake.fss.exceptions.NotAReadableFileException;
+
+/**
+ * Hashes files on a bounded pool of worker threads. If the queue is full (or
+ * the executor is shut down), the submitting thread hashes the file itself,
+ * which slows down whoever submits too much.
+ * 
+ * @author johannes
+ */
+public class HashExecutor {
+
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private final StreamFileHashCalculator hasher;
+
+	private final ThreadPoolExecutor executor;
+
+	public HashExecutor(StreamFileHashCalculator hasher, int threads) {
+		this(hasher, threads, DEFAULT_QUEUE_SIZE);
+	}
+
+	public HashExecutor(StreamFileHashCalculator hasher, int threads,
+			int queueSize) {
+		this.hasher = hasher;
+		final int number = poolNumber.incrementAndGet();
+		executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), new ThreadFactory() {
+
+					private int n = 0;
+
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "HashExecutor-" + number + "-"
+								+ (++n));
+						t.setDaemon(true);
+						return t;
+					}
+				}, new RejectedExecutionHandler() {
+
+					/*
+					 * unlike CallerRunsPolicy, also after shutdown, so that
+					 * no future is left incomplete
+					 */
+					public void rejectedExecution(Runnable r,
+							ThreadPoolExecutor executor) {
+						r.run();
+					}
+				});
+	}
+
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * for other hashing work that should share the workers
+	 */
+	Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return the hash of the file. Completes exceptionally with
+	 *         {@link FileNotFoundException} or
+	 *         {@link NotAReadableFileException}.
+	 */
+	public CompletableFuture<HashValue> submit(final File f) {
+		final CompletableFuture<HashValue> result = new CompletableFuture<HashValue>();
+		executor.execute(new Runnable() {
+
+			public void run() {
+				try {
+					HashValue h = hasher.calculateHash(f);
+					if (h == null)
+						result.completeExceptionally(new NotAReadableFileException(
+								"Not readable: " + f));
+					else
+						result.complete(h);
+				} catch (FileNotFoundException e) {
+					result.completeExceptionally(e);
+				} catch (RuntimeException e) {
+					result.completeExceptionally(e);
+				}
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * stops the workers; already submitted files are still hashed
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,257 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * A hash over a file that is split into fixed-size chunks: every chunk gets
+ * its own digest (the leaves), which are combined pairwise into a root
+ * digest.
+ * <p>
+ * When a file grows or a known range of it changes, only the affected
+ * chunks are read again ({@link #append(File, Executor)},
+ * {@link #update(File, long, long, Executor)}). Comparing the leaves of two
+ * trees tells which chunks differ ({@link #getChangedChunks(HashTree)}).
+ * </p>
+ * <p>
+ * Leaves are the digest over 0x00 followed by the chunk, inner nodes the
+ * digest over 0x01 followed by both children; a node without sibling is
+ * carried up unchanged. An empty file has one (empty) leaf. If an update
+ * fails, the whole file is hashed again on the next one.
+ * </p>
+ * 
+ * @author johannes
+ */
+public class HashTree {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	private static final byte LEAF = 0;
+
+	private static final byte NODE = 1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final int chunkSize;
+
+	private final String algorithm;
+
+	private final List<HashValue> leaves = new ArrayList<HashValue>();
+
+	private long length = 0;
+
+	private HashValue root;
+
+	private HashTree(int chunkSize) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("chunkSize must be positive");
+		this.chunkSize = chunkSize;
+		this.algorithm = HashValue.DIGEST;
+	}
+
+	/**
+	 * @param executor
+	 *            chunks are hashed on this executor, or in the calling thread
+	 *            if null
+	 */
+	public static HashTree calculate(File f, int chunkSize, Executor executor)
+			throws IOException {
+		HashTree tree = new HashTree(chunkSize);
+		tree.update(f, 0, Long.MAX_VALUE, executor);
+		return tree;
+	}
+
+	/**
+	 * The file has been appended to: rehashes the last (partial) chunk and the
+	 * new ones.
+	 */
+	public void append(File f, Executor executor) throws IOException {
+		update(f, 0, 0, executor);
+	}
+
+	/**
+	 * The bytes from <code>from</code> (inclusive) to <code>to</code>
+	 * (exclusive) have changed. Rehashes the chunks overlapping that range;
+	 * if the file length changed, also the chunks from the old or new end on.
+	 */
+	public synchronized void update(File f, long from, long to,
+			Executor executor) throws IOException {
+		FileChannel channel = FileChannel.open(f.toPath(),
+				StandardOpenOption.READ);
+		try {
+			long newLength = channel.size();
+			int count = getChunkCount(newLength);
+			BitSet dirty = new BitSet(count);
+			long end = Math.min(to, newLength);
+			if (from < end)
+				dirty.set((int) (from / chunkSize), (int) Math.min(count,
+						(end + chunkSize - 1) / chunkSize));
+			if (newLength != length || leaves.isEmpty())
+				dirty.set((int) Math.min(count, Math.min(length, newLength)
+						/ chunkSize), count);
+
+			while (leaves.size() > count)
+				leaves.remove(leaves.size() - 1);
+			while (leaves.size() < count)
+				leaves.add(null);
+			try {
+				hashChunks(channel, newLength, dirty, executor);
+			} catch (IOException e) {
+				/* start over next time */
+				leaves.clear();
+				length = 0;
+				root = null;
+				throw e;
+			}
+			length = newLength;
+			root = combine(leaves);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void hashChunks(final FileChannel channel, final long size,
+			BitSet dirtySet, Executor executor) throws IOException {
+		List<Integer> dirty = new ArrayList<Integer>();
+		for (int i = dirtySet.nextSetBit(0); i >= 0; i = dirtySet
+				.nextSetBit(i + 1))
+			dirty.add(i);
+		if (executor == null || dirty.size() < 2) {
+			for (int i : dirty)
+				leaves.set(i, hashChunk(channel, i, size));
+			return;
+		}
+		final HashValue[] results = new HashValue[dirty.size()];
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>();
+		for (int j = 0; j < results.length; j++) {
+			final int slot = j;
+			final int chunk = dirty.get(j);
+			futures.add(CompletableFuture.runAsync(new Runnable() {
+
+				public void run() {
+					try {
+						results[slot] = hashChunk(channel, chunk, size);
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, executor));
+		}
+		try {
+			CompletableFuture.allOf(
+					futures.toArray(new CompletableFuture<?>[futures.size()]))
+					.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw e;
+		}
+		for (int j = 0; j < results.length; j++)
+			leaves.set(dirty.get(j), results[j]);
+	}
+
+	private HashValue hashChunk(FileChannel channel, int chunk, long size)
+			throws IOException {
+		MessageDigest md = newDigest();
+		md.update(LEAF);
+		ByteBuffer buf = buffer.get();
+		long pos = (long) chunk * chunkSize;
+		long end = Math.min(size, pos + chunkSize);
+		while (pos < end) {
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end - pos));
+			int n = channel.read(buf, pos);
+			if (n < 0)
+				throw new IOException("file was truncated while hashing");
+			buf.flip();
+			md.update(buf);
+			pos += n;
+		}
+		return new HashValue(md.digest());
+	}
+
+	private HashValue combine(List<HashValue> nodes) {
+		MessageDigest md = newDigest();
+		while (nodes.size() > 1) {
+			List<HashValue> parents = new ArrayList<HashValue>(
+					(nodes.size() + 1) / 2);
+			for (int i = 0; i < nodes.size(); i += 2) {
+				if (i + 1 == nodes.size()) {
+					parents.add(nodes.get(i));
+				} else {
+					md.update(NODE);
+					md.update(nodes.get(i).getValue());
+					md.update(nodes.get(i + 1).getValue());
+					parents.add(new HashValue(md.digest()));
+				}
+			}
+			nodes = parents;
+		}
+		return nodes.get(0);
+	}
+
+	private MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int getChunkCount(long size) {
+		return (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+	}
+
+	public synchronized HashValue getRoot() {
+		return root;
+	}
+
+	public synchronized List<HashValue> getLeaves() {
+		return Collections.unmodifiableList(new ArrayList<HashValue>(leaves));
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public synchronized long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return indexes of the chunks of this file that differ from (or are not
+	 *         in) the other tree
+	 */
+	public List<Integer> getChangedChunks(HashTree other) {
+		if (other.chunkSize != chunkSize)
+			throw new IllegalArgumentException("different chunk sizes");
+		List<HashValue> mine = getLeaves();
+		List<HashValue> theirs = other.getLeaves();
+		List<Integer> changed = new ArrayList<Integer>();
+		for (int i = 0; i < mine.size(); i++) {
+			if (i >= theirs.size() || !mine.get(i).equals(theirs.get(i)))
+				changed.add(i);
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,13 @@
+package com.jakeapp.jake.fss;
+
+/**
+ * Objects listening for file modifications in batches have to implement
+ * this: they get the changes of a whole scan at once.
+ * 
+ * @author johannes
+ * @see IFSService#addChangeSetListener(IChangeSetListener)
+ */
+public interface IChangeSetListener {
+
+	void changesHappened(ChangeSet changes);
+}
@@ -4,11 +4,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 import com.jakeapp.jake.fss.exceptions.CreatingSubDirectoriesFailedException;
 import com.jakeapp.jake.fss.exceptions.FileAlreadyExistsException;
 import com.jakeapp.jake.fss.exceptions.FileTooLargeException;
+import com.jakeapp.jake.fss.exceptions.HashMismatchException;
 import com.jakeapp.jake.fss.exceptions.InvalidFilenameException;
 import com.jakeapp.jake.fss.exceptions.LaunchException;
 import com.jakeapp.jake.fss.exceptions.NotADirectoryException;
@@ -149,6 +155,22 @@ public interface IFSService {
 	 */
 	public List<String> recursiveListFiles() throws IOException;
 
+	/**
+	 * Walks the folder and all its subfolders lazily, reading the attributes
+	 * of each entry once. Entries are found while the stream is consumed;
+	 * close the stream if it is not consumed completely.
+	 * 
+	 * @param relativePath
+	 *            the folder to start at, "" for the root
+	 * @return the files and folders within, depth-first
+	 * @throws InvalidFilenameException
+	 *             if the relativePath is not valid for jake
+	 * @throws NotADirectoryException
+	 *             if the relativePath is not a folder
+	 */
+	public Stream<FileInfo> walk(String relativePath)
+			throws InvalidFilenameException, NotADirectoryException;
+
 	/**
 	 * Reads the full content of a given file into a String
 	 * 
@@ -189,6 +211,94 @@ public interface IFSService {
 			throws InvalidFilenameException, FileNotFoundException,
 			NotAReadableFileException;
 
+	/**
+	 * Gives access to the content of a given file, checking it against the
+	 * expected hash while it is read: reading past the end throws a
+	 * {@link HashMismatchException} if the content doesn't match.
+	 * 
+	 * @param relativePath
+	 *            the relative path of the file
+	 * @param expected
+	 *            hash the content should have
+	 * @return content of the file
+	 * @throws InvalidFilenameException
+	 *             if the filename is not valid for jake
+	 * @throws FileNotFoundException
+	 *             if the file is not found
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable
+	 */
+	public InputStream readFileStream(String relativePath, HashValue expected)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException;
+
+	/**
+	 * Reads a part of a file, without reading what is before it.
+	 * 
+	 * @param relativePath
+	 *            the relative path of the file
+	 * @param offset
+	 *            position in the file to start at
+	 * @param dst
+	 *            filled from its position up to its limit, or until the end of
+	 *            the file
+	 * @return number of bytes read, -1 if offset is at or after the end of
+	 *         the file
+	 * @throws InvalidFilenameException
+	 *             if the filename is not valid for jake
+	 * @throws FileNotFoundException
+	 *             if the file is not found
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable
+	 * @throws IOException
+	 *             if an I/O Error occured
+	 */
+	public int readFileRange(String relativePath, long offset, ByteBuffer dst)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException, IOException;
+
+	/**
+	 * Opens the file for random access reads. The caller has to close the
+	 * channel.
+	 * 
+	 * @param relativePath
+	 *            the relative path of the file
+	 * @return a read-only channel
+	 * @throws InvalidFilenameException
+	 *             if the filename is not valid for jake
+	 * @throws FileNotFoundException
+	 *             if the file is not found
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable
+	 */
+	public FileChannel openFileChannel(String relativePath)
+			throws InvalidFilenameException, FileNotFoundException,
+			NotAReadableFileException;
+
+	/**
+	 * Maps a part of the file into memory, read-only. Note that on Windows,
+	 * the file can't be deleted or replaced while the mapping is reachable.
+	 * 
+	 * @param relativePath
+	 *            the relative path of the file
+	 * @param offset
+	 *            position in the file the mapping starts at
+	 * @param length
+	 *            length of the mapping, at most Integer.MAX_VALUE
+	 * @return the mapped part of the file
+	 * @throws InvalidFilenameException
+	 *             if the filename is not valid for jake
+	 * @throws FileNotFoundException
+	 *             if the file is not found
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable
+	 * @throws IOException
+	 *             if an I/O Error occured
+	 */
+	public MappedByteBuffer mapFile(String relativePath, long offset,
+			long length) throws InvalidFilenameException,
+			FileNotFoundException, NotAReadableFileException, IOException;
+
 	/**
 	 * Sets and stores the root path for operations that use a relativePath.
 	 * 
@@ -238,7 +348,9 @@ public interface IFSService {
 			CreatingSubDirectoriesFailedException;
 
 	/**
-	 * Writes the content to the file. Creates subdirectories, if needed.
+	 * Writes the content to the file. Creates subdirectories, if needed. If
+	 * atomic writes are enabled, the file is replaced only once the content
+	 * is complete.
 	 * 
 	 * @param relativePath
 	 *            the relative path to the file
@@ -260,6 +372,29 @@ public interface IFSService {
 			FileTooLargeException, NotAFileException,
 			CreatingSubDirectoriesFailedException;
 
+	/**
+	 * Like {@link #writeFileStream(String, InputStream)}, but also hashes the
+	 * content while writing it, so it doesn't have to be read again.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @param stream
+	 *            the new file stream
+	 * @return hash, size and modification time of the written file
+	 * @throws InvalidFilenameException
+	 *             if the filename is not valid for jake
+	 * @throws IOException
+	 *             if an I/O Error occured
+	 * @throws NotAFileException
+	 *             if the relativePath is not a file
+	 * @throws CreatingSubDirectoriesFailedException
+	 *             if jake couldn't create subdirectories
+	 */
+	public WriteResult writeFileStreamWithHash(String relativePath,
+			InputStream stream) throws InvalidFilenameException,
+			NotAFileException, CreatingSubDirectoriesFailedException,
+			IOException;
+
 	/**
 	 * Gets the operating system preferred temporary directory It is deleted
 	 * eventually by the operating system after program termination
@@ -406,6 +541,128 @@ public interface IFSService {
 			throws InvalidFilenameException, NotAReadableFileException,
 			FileNotFoundException;
 
+	/**
+	 * Hashes the file on a pool of worker threads. Many files can be submitted
+	 * at once, e.g. for the initial hash of a new project.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @return the hash of the file, once calculated. Completes exceptionally
+	 *         with {@link FileNotFoundException} if there is no file, or
+	 *         {@link NotAReadableFileException} if it can't be read.
+	 * @throws InvalidFilenameException
+	 *             if the filename is invalid for jake
+	 */
+	CompletableFuture<HashValue> calculateHashOverFileAsync(
+			String relativePath) throws InvalidFilenameException;
+
+	/**
+	 * Hashes the file in chunks, see {@link HashTree}. The chunks are hashed
+	 * in parallel.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @return the chunk and root hashes of the file
+	 * @throws InvalidFilenameException
+	 *             if the filename is invalid for jake
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable (directory, not enough rights
+	 *             etc.)
+	 * @throws FileNotFoundException
+	 *             if no file is found at this relativePath
+	 */
+	HashTree calculateHashTreeOverFile(String relativePath)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException;
+
+	/**
+	 * Brings a tree from {@link #calculateHashTreeOverFile(String)} up to date
+	 * after the file was modified, reading only the affected chunks.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @param tree
+	 *            the tree of the previous version of the file
+	 * @param from
+	 *            first modified byte
+	 * @param to
+	 *            end (exclusive) of the modified bytes. If the file was only
+	 *            appended to, pass from = to = 0.
+	 * @throws InvalidFilenameException
+	 *             if the filename is invalid for jake
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable (directory, not enough rights
+	 *             etc.)
+	 * @throws FileNotFoundException
+	 *             if no file is found at this relativePath
+	 */
+	void updateHashTree(String relativePath, HashTree tree, long from, long to)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException;
+
+	/**
+	 * Cuts the file into content-defined chunks, see
+	 * {@link ContentDefinedChunker}. Files that share content share chunks.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @return the chunks of the file, in order
+	 * @throws InvalidFilenameException
+	 *             if the filename is invalid for jake
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable (directory, not enough rights
+	 *             etc.)
+	 * @throws FileNotFoundException
+	 *             if no file is found at this relativePath
+	 */
+	List<Chunk> chunkFile(String relativePath)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException;
+
+	/**
+	 * Calculates the block checksums of the file, from which whoever has a
+	 * newer version can create a {@link FileDelta}.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @return the signature of the file
+	 * @throws InvalidFilenameException
+	 *             if the filename is invalid for jake
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable (directory, not enough rights
+	 *             etc.)
+	 * @throws FileNotFoundException
+	 *             if no file is found at this relativePath
+	 */
+	FileSignature calculateSignature(String relativePath)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException;
+
+	/**
+	 * Updates the file to the new version described by the delta. The new
+	 * version is written to a temporary file next to it, checked against the
+	 * hash in the delta and then moved over the file, so the file is never
+	 * seen half-written.
+	 * 
+	 * @param relativePath
+	 *            the relative path to the file
+	 * @param delta
+	 *            created from the signature of this file
+	 * @throws InvalidFilenameException
+	 *             if the filename is invalid for jake
+	 * @throws NotAReadableFileException
+	 *             if the file is not readable (directory, not enough rights
+	 *             etc.)
+	 * @throws FileNotFoundException
+	 *             if no file is found at this relativePath
+	 * @throws IOException
+	 *             if an I/O Error occured, or the delta was not created for
+	 *             this file. The file is left unchanged.
+	 */
+	void applyDelta(String relativePath, FileDelta delta)
+			throws InvalidFilenameException, NotAReadableFileException,
+			FileNotFoundException, IOException;
+
 	/**
 	 * @param bytes
 	 *            content to calculate the hash of
@@ -465,6 +722,24 @@ public interface IFSService {
 	public void removeModificationListener(
 			IFileModificationListener fileModificationListener);
 
+	/**
+	 * Registers a callback for watching the rootpath that gets all changes
+	 * found by a scan (or collected in a coalescing window) at once.
+	 * Listeners registered by
+	 * {@link #addModificationListener(IFileModificationListener)} get the
+	 * same changes one by one. Each listener is called on a thread of the
+	 * service, in order, through a bounded queue of its own.
+	 * 
+	 * @see IChangeSetListener
+	 */
+	public void addChangeSetListener(IChangeSetListener changeSetListener);
+
+	/**
+	 * Removes a callback registered by
+	 * {@link #addChangeSetListener(IChangeSetListener)}.
+	 */
+	public void removeChangeSetListener(IChangeSetListener changeSetListener);
+
 	/**
 	 * get the last modified date for a file
 	 * 
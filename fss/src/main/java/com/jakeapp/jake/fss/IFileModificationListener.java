@@ -11,4 +11,13 @@ import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
 public interface IFileModificationListener {
 
 	void fileModified(String relpath, ModifyActions action);
+
+	/**
+	 * the file was moved (or renamed) within the project; its content did
+	 * not change. By default reported as deleted and created.
+	 */
+	default void fileMoved(String fromRelpath, String toRelpath) {
+		fileModified(fromRelpath, ModifyActions.DELETED);
+		fileModified(toRelpath, ModifyActions.CREATED);
+	}
 }
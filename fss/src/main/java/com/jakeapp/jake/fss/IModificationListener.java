@@ -11,10 +11,11 @@ import java.io.File;
 public interface IModificationListener {
 
 	/**
-	 * Actions that can occur for a file on a filesystem.
+	 * Actions that can occur for a file on a filesystem. Moves are reported
+	 * through {@link IModificationListener#fileMoved(File, File)}.
 	 */
 	public enum ModifyActions {
-		CREATED, DELETED, MODIFIED
+		CREATED, DELETED, MODIFIED, MOVED
 	}
 
 	/**
@@ -28,4 +29,25 @@ public interface IModificationListener {
 	 */
 	void fileModified(File file, ModifyActions action);
 
+	/**
+	 * the file was moved (or renamed) within the watched folder; its content
+	 * did not change. By default reported as deleted and created.
+	 * 
+	 * @param from
+	 *            where the file was
+	 * @param to
+	 *            where it is now
+	 */
+	default void fileMoved(File from, File to) {
+		fileModified(from, ModifyActions.DELETED);
+		fileModified(to, ModifyActions.CREATED);
+	}
+
+	/**
+	 * called after the events of a scan (or of a batch of them) were
+	 * reported
+	 */
+	default void scanCompleted() {
+	}
+
 }
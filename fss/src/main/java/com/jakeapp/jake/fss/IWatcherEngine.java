@@ -0,0 +1,30 @@
+package com.jakeapp.jake.fss;
+
+import java.io.IOException;
+
+/**
+ * Decides when (and where) a {@link FolderWatcher} has to look for changes.
+ * The watcher does the actual comparison and fires the events, the engine
+ * only triggers scans of the affected folders.
+ * 
+ * @author johannes
+ * @see PollingWatcherEngine
+ * @see NativeWatcherEngine
+ */
+public interface IWatcherEngine {
+
+	/**
+	 * starts triggering scans on the given watcher. Returns immediately.
+	 * 
+	 * @param watcher
+	 *            the watcher to notify
+	 * @throws IOException
+	 *             if the engine is not available on this platform/filesystem
+	 */
+	void start(FolderWatcher watcher) throws IOException;
+
+	/**
+	 * stops triggering scans. The engine may not be started again.
+	 */
+	void cancel();
+}
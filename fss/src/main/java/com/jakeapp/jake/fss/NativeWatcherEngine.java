@@ -0,0 +1,282 @@
+package com.jakeapp.jake.fss;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Uses the operating system notification mechanism (inotify, kqueue, ...)
+ * through {@link WatchService}. Every folder of the project is registered;
+ * when something happens in a folder only that folder is rescanned. Newly
+ * created folders are registered (and scanned recursively) as they show up.
+ * If the OS dropped events (OVERFLOW), the affected folder is rescanned
+ * recursively. Folders that cannot be registered (too many watches, for
+ * instance) are rescanned every {@link FolderWatcher#DEFAULT_POLLING_INTERVAL}
+ * milliseconds until they can.
+ * <p>
+ * Where the OS has no notification mechanism, the JDK polls every folder
+ * itself, which takes seconds to notice a change; the engine refuses to
+ * start then, so that the watcher falls back to its own polling.
+ * </p>
+ * <p>
+ * After the first event, the engine waits <code>settleTime</code>
+ * milliseconds for more events, so that a file being written is usually
+ * looked at once it is complete.
+ * </p>
+ * <p>
+ * While it is waiting for events, the watcher is told that it is up to date,
+ * see {@link FolderWatcher#lookup(String, long)}; not while there are
+ * folders it cannot watch.
+ * </p>
+ * 
+ * @author johannes
+ */
+public class NativeWatcherEngine implements IWatcherEngine {
+
+	private static final Logger log = Logger
+			.getLogger(NativeWatcherEngine.class);
+
+	public static final long DEFAULT_SETTLE_TIME = 50;
+
+	private long settleTime;
+
+	private WatchService watchService;
+
+	/* folders that couldn't be registered, rescanned every interval */
+	private final Set<Path> unwatched = new LinkedHashSet<Path>();
+
+	private Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+	private Thread thread;
+
+	private volatile boolean isCanceled = false;
+
+	public NativeWatcherEngine() {
+		this(DEFAULT_SETTLE_TIME);
+	}
+
+	public NativeWatcherEngine(long settleTime) {
+		this.settleTime = settleTime;
+	}
+
+	public void start(final FolderWatcher watcher) throws IOException {
+		final Path root = watcher.getRootpath().toPath();
+		watchService = root.getFileSystem().newWatchService();
+		if (isPolling(watchService)) {
+			watchService.close();
+			throw new IOException("no native notification, the "
+					+ "watch service only polls");
+		}
+		try {
+			registerAll(root);
+		} catch (IOException e) {
+			watchService.close();
+			throw e;
+		}
+		if (unwatched.contains(root)) {
+			watchService.close();
+			throw new IOException("couldn't watch " + root);
+		}
+
+		thread = new Thread(new Runnable() {
+
+			public void run() {
+				/* catch what happened before we were registered */
+				watcher.scan(root.toFile(), true);
+				processEvents(watcher);
+			}
+		}, "NativeWatcherEngine " + root);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void cancel() {
+		isCanceled = true;
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				log.warn("closing watch service failed", e);
+			}
+		}
+	}
+
+	/**
+	 * whether this is the JDK fallback that polls every folder itself
+	 * (macOS, for instance), taking seconds to notice a change
+	 */
+	static boolean isPolling(WatchService watchService) {
+		return watchService.getClass().getSimpleName().equals(
+				"PollingWatchService");
+	}
+
+	private void registerAll(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) {
+				try {
+					register(dir);
+					unwatched.remove(dir);
+				} catch (IOException e) {
+					if (unwatched.add(dir))
+						log.warn("couldn't watch " + dir + ", polling it", e);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				log.debug("couldn't visit " + file, e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void register(Path dir) throws IOException {
+		WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE,
+				ENTRY_MODIFY);
+		synchronized (keys) {
+			keys.put(key, dir);
+		}
+		if (log.isDebugEnabled())
+			log.debug("watching " + dir);
+	}
+
+	private void processEvents(FolderWatcher watcher) {
+		while (!isCanceled) {
+			WatchKey key;
+			try {
+				if (unwatched.isEmpty()) {
+					watcher.setEngineIdle(true);
+					key = watchService.take();
+					watcher.setEngineIdle(false);
+				} else {
+					key = watchService.poll(
+							FolderWatcher.DEFAULT_POLLING_INTERVAL,
+							TimeUnit.MILLISECONDS);
+				}
+				if (key != null && settleTime > 0)
+					Thread.sleep(settleTime);
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			/*
+			 * drain everything that is pending, so that a burst of events
+			 * results in one scan per folder. value: scan recursively?
+			 */
+			Map<Path, Boolean> pending = new LinkedHashMap<Path, Boolean>();
+			try {
+				while (key != null) {
+					collect(key, pending);
+					key = watchService.poll();
+				}
+				retryUnwatched(pending);
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			if (pending.isEmpty())
+				continue;
+
+			/* as one batch, so that moves between folders are seen */
+			Map<File, Boolean> folders = new LinkedHashMap<File, Boolean>();
+			for (Map.Entry<Path, Boolean> e : pending.entrySet())
+				folders.put(e.getKey().toFile(), e.getValue());
+			if (isCanceled)
+				return;
+			watcher.scan(folders, true);
+		}
+	}
+
+	private void collect(WatchKey key, Map<Path, Boolean> pending) {
+		Path dir;
+		synchronized (keys) {
+			dir = keys.get(key);
+		}
+		if (dir == null) {
+			key.cancel();
+			return;
+		}
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				log.info("events lost in " + dir + ", rescanning it");
+				pending.put(dir, true);
+				continue;
+			}
+			if (!pending.containsKey(dir))
+				pending.put(dir, false);
+
+			Path child = dir.resolve((Path) event.context());
+			if (event.kind() == ENTRY_CREATE
+					&& Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					registerAll(child);
+				} catch (IOException e) {
+					log.warn("couldn't watch new folder " + child, e);
+					unwatched.add(child);
+				}
+				pending.put(child, true);
+			}
+		}
+
+		if (!key.reset()) {
+			/* folder is gone; the parent gets a DELETE event for it */
+			synchronized (keys) {
+				keys.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * tries to register the folders that couldn't be, and rescans them as
+	 * they may have changed unnoticed
+	 */
+	private void retryUnwatched(Map<Path, Boolean> pending) {
+		for (Path dir : new ArrayList<Path>(unwatched)) {
+			if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+				/* gone; the scan of its parent notices */
+				unwatched.remove(dir);
+				continue;
+			}
+			try {
+				registerAll(dir);
+			} catch (IOException e) {
+				log.debug("couldn't walk " + dir, e);
+			}
+			pending.put(dir, true);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "native watch service";
+	}
+}
@@ -0,0 +1,56 @@
+package com.jakeapp.jake.fss;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scans the whole project folder, waiting <code>pollingInterval</code>
+ * milliseconds between the end of a scan and the start of the next one. Works
+ * everywhere, but costs a full tree walk per tick.
+ * 
+ * @author johannes
+ */
+public class PollingWatcherEngine implements IWatcherEngine {
+
+	private long pollingInterval;
+
+	private ScheduledExecutorService timer;
+
+	public PollingWatcherEngine(long pollingInterval) {
+		this.pollingInterval = pollingInterval;
+	}
+
+	public void start(final FolderWatcher watcher) {
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PollingWatcherEngine "
+						+ watcher.getRootpath());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		/*
+		 * fixed delay, so that slow scans (large trees, network filesystems)
+		 * do not run back-to-back
+		 */
+		timer.scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				watcher.scan(watcher.getRootpath(), true);
+			}
+		}, 0, pollingInterval, TimeUnit.MILLISECONDS);
+	}
+
+	public void cancel() {
+		if (timer != null)
+			timer.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "polling every " + pollingInterval + "ms";
+	}
+}
@@ -0,0 +1,59 @@
+package com.jakeapp.jake.fss;
+
+/**
+ * Checks relative paths for jake: only the characters
+ * <code>A-Z a-z 0-9 - + _ . / ( )</code> and space are allowed, the path must
+ * not be empty and no segment may be "..".
+ * <p>
+ * This is called for every path operation and every listed entry, so it
+ * makes a single pass over the string without regex or allocation.
+ * </p>
+ * 
+ * @author johannes
+ */
+final class RelpathValidator {
+
+	private static final boolean[] ALLOWED = new boolean[128];
+
+	static {
+		for (char c = 'A'; c <= 'Z'; c++)
+			ALLOWED[c] = true;
+		for (char c = 'a'; c <= 'z'; c++)
+			ALLOWED[c] = true;
+		for (char c = '0'; c <= '9'; c++)
+			ALLOWED[c] = true;
+		for (char c : " -+_./()".toCharArray())
+			ALLOWED[c] = true;
+	}
+
+	private RelpathValidator() {
+	}
+
+	/**
+	 * @param relpath
+	 *            not null
+	 * @return whether relpath is a valid relative path
+	 */
+	static boolean isValid(String relpath) {
+		int len = relpath.length();
+		if (len == 0)
+			return false;
+		int segmentStart = 0;
+		for (int i = 0; i < len; i++) {
+			char c = relpath.charAt(i);
+			if (c >= ALLOWED.length || !ALLOWED[c])
+				return false;
+			if (c == '/') {
+				if (isDotDot(relpath, segmentStart, i))
+					return false;
+				segmentStart = i + 1;
+			}
+		}
+		return !isDotDot(relpath, segmentStart, len);
+	}
+
+	private static boolean isDotDot(String relpath, int start, int end) {
+		return end - start == 2 && relpath.charAt(start) == '.'
+				&& relpath.charAt(start + 1) == '.';
+	}
+}
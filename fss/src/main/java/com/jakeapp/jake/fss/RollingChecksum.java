@@ -0,0 +1,48 @@
+package com.jakeapp.jake.fss;
+
+/**
+ * The weak checksum of rsync: can be moved along a stream one byte at a time
+ * without looking at the rest of the window.
+ * 
+ * @author johannes
+ */
+class RollingChecksum {
+
+	private int a;
+
+	private int b;
+
+	private int length;
+
+	/**
+	 * starts over with the given window
+	 */
+	void reset(byte[] buf, int off, int len) {
+		a = 0;
+		b = 0;
+		length = len;
+		for (int i = 0; i < len; i++) {
+			int x = buf[off + i] & 0xff;
+			a += x;
+			b += (len - i) * x;
+		}
+	}
+
+	/**
+	 * moves the window on by one byte
+	 */
+	void roll(byte out, byte in) {
+		a += (in & 0xff) - (out & 0xff);
+		b += a - length * (out & 0xff);
+	}
+
+	int getValue() {
+		return (a & 0xffff) | (b << 16);
+	}
+
+	static int of(byte[] buf, int off, int len) {
+		RollingChecksum c = new RollingChecksum();
+		c.reset(buf, off, len);
+		return c.getValue();
+	}
+}
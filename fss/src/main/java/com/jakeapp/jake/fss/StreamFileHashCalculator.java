@@ -5,32 +5,151 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Calculates {@link HashValue}s. Safe to be shared between threads: each
+ * thread gets its own {@link MessageDigest} and buffers.
+ * <p>
+ * Files are read through a {@link FileChannel}: into a reused direct buffer,
+ * or, from <code>mapThreshold</code> bytes on, by mapping windows of the
+ * file into memory.
+ * </p>
+ */
 public class StreamFileHashCalculator {
 
-	private MessageDigest md;
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	public static final long DEFAULT_MAP_THRESHOLD = 64L * 1024 * 1024;
+
+	public static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	private final String algorithm;
+
+	private final ThreadLocal<MessageDigest> md;
+
+	private final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final ThreadLocal<byte[]> heapBuffer = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	private volatile long mapThreshold = DEFAULT_MAP_THRESHOLD;
 
 	public StreamFileHashCalculator() throws NoSuchAlgorithmException {
-		md = MessageDigest.getInstance(HashValue.DIGEST);
+		algorithm = HashValue.DIGEST;
+		/* fail early if the algorithm is not there */
+		MessageDigest.getInstance(algorithm);
+		md = new ThreadLocal<MessageDigest>() {
+
+			@Override
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance(algorithm);
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Files of at least this size are hashed by mapping them into memory.
+	 * Long.MAX_VALUE disables mapping. Note that on Windows, a mapped file
+	 * can't be deleted until the mapping is garbage collected.
+	 */
+	public void setMapThreshold(long mapThreshold) {
+		this.mapThreshold = mapThreshold;
+	}
+
+	public long getMapThreshold() {
+		return mapThreshold;
 	}
 
+	/**
+	 * @return the hash, or null if the file couldn't be read
+	 */
 	public HashValue calculateHash(File f) throws FileNotFoundException {
-		return calculateHash(new FileInputStream(f));
+		FileInputStream fis = new FileInputStream(f);
+		FileChannel channel = fis.getChannel();
+		MessageDigest digest = md.get();
+		digest.reset();
+		try {
+			long size = channel.size();
+			if (size >= mapThreshold)
+				updateMapped(digest, channel, size);
+			else
+				updateBuffered(digest, channel);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				fis.close();
+			} catch (IOException e) {
+			}
+		}
+		return new HashValue(digest.digest());
+	}
+
+	private void updateBuffered(MessageDigest digest, FileChannel channel)
+			throws IOException {
+		ByteBuffer buf = directBuffer.get();
+		buf.clear();
+		while (channel.read(buf) >= 0) {
+			buf.flip();
+			digest.update(buf);
+			buf.clear();
+		}
+	}
+
+	private void updateMapped(MessageDigest digest, FileChannel channel,
+			long size) throws IOException {
+		for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+			MappedByteBuffer window = channel.map(
+					FileChannel.MapMode.READ_ONLY, pos,
+					Math.min(MAP_WINDOW, size - pos));
+			digest.update(window);
+		}
+		/* the file might have grown meanwhile */
+		channel.position(size);
+		updateBuffered(digest, channel);
 	}
 
+	/**
+	 * @return the hash, or null if the stream couldn't be read
+	 */
 	public HashValue calculateHash(InputStream is) {
-		DigestInputStream dis = new DigestInputStream(is, md);
-		byte[] tmp = new byte[1024];
+		MessageDigest digest = md.get();
+		digest.reset();
+		byte[] tmp = heapBuffer.get();
 		try {
-			while (dis.read(tmp) >= 0);
-			dis.close();
+			int len;
+			while ((len = is.read(tmp)) >= 0) {
+				digest.update(tmp, 0, len);
+			}
 		} catch (IOException e) {
 			return null;
+		} finally {
+			try {
+				is.close();
+			} catch (IOException e) {
+			}
 		}
-		return new HashValue(md.digest());
+		return new HashValue(digest.digest());
 	}
 
 }
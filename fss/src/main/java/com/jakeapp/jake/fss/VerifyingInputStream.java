@@ -0,0 +1,102 @@
+package com.jakeapp.jake.fss;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.jakeapp.jake.fss.exceptions.HashMismatchException;
+
+/**
+ * Hashes the content as it is read. At the end of the stream, throws a
+ * {@link HashMismatchException} instead of returning -1 if the hash is not
+ * the expected one, so whoever reads the stream to its end knows it got the
+ * right content.
+ * 
+ * @author johannes
+ */
+public class VerifyingInputStream extends FilterInputStream {
+
+	private final String name;
+
+	private final HashValue expected;
+
+	private final MessageDigest md;
+
+	private HashValue actual = null;
+
+	/**
+	 * @param name
+	 *            for the exception message
+	 */
+	public VerifyingInputStream(InputStream in, HashValue expected, String name) {
+		super(in);
+		this.name = name;
+		this.expected = expected;
+		try {
+			this.md = MessageDigest.getInstance(HashValue.DIGEST);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+		if (b < 0)
+			verify();
+		else
+			md.update((byte) b);
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = in.read(b, off, len);
+		if (n < 0)
+			verify();
+		else
+			md.update(b, off, n);
+		return n;
+	}
+
+	/**
+	 * skipped bytes have to be hashed, too
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0)
+			return 0;
+		byte[] buf = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int r = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+			if (r < 0)
+				break;
+			skipped += r;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	private void verify() throws HashMismatchException {
+		if (actual == null)
+			actual = new HashValue(md.digest());
+		if (!actual.equals(expected))
+			throw new HashMismatchException(name, expected, actual);
+	}
+}
@@ -0,0 +1,42 @@
+package com.jakeapp.jake.fss;
+
+/**
+ * What was written by
+ * {@link IFSService#writeFileStreamWithHash(String, java.io.InputStream)}.
+ * 
+ * @author johannes
+ */
+public class WriteResult {
+
+	private final HashValue hash;
+
+	private final long size;
+
+	private final long lastModified;
+
+	public WriteResult(HashValue hash, long size, long lastModified) {
+		this.hash = hash;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * @return the hash over the content written
+	 */
+	public HashValue getHash() {
+		return hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return hash + " (" + size + " bytes, modified " + lastModified + ")";
+	}
+}
@@ -0,0 +1,33 @@
+package com.jakeapp.jake.fss.exceptions;
+
+import java.io.IOException;
+
+import com.jakeapp.jake.fss.HashValue;
+
+/**
+ * The content read does not have the expected hash.
+ * 
+ * @author johannes
+ * 
+ */
+@SuppressWarnings("serial")
+public class HashMismatchException extends IOException {
+
+	private final HashValue expected;
+
+	private final HashValue actual;
+
+	public HashMismatchException(String s, HashValue expected, HashValue actual) {
+		super(s + ": expected " + expected + ", got " + actual);
+		this.expected = expected;
+		this.actual = actual;
+	}
+
+	public HashValue getExpected() {
+		return expected;
+	}
+
+	public HashValue getActual() {
+		return actual;
+	}
+}
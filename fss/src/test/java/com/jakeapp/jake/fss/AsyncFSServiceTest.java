@@ -0,0 +1,213 @@
+package com.jakeapp.jake.fss;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.googlecode.junit.ext.PrerequisiteAwareClassRunner;
+import com.jakeapp.jake.fss.AsyncFSService.Operation;
+
+@RunWith(PrerequisiteAwareClassRunner.class)
+public class AsyncFSServiceTest extends FSServiceTestCase {
+
+	private AsyncFSService async;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		async = new AsyncFSService(fss, 4);
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+		async.shutdown();
+		super.tearDown();
+	}
+
+	@Test
+	public void testReadAndWrite() throws Exception {
+		async.writeFile("dir/file", ByteBuffer.wrap("0123456789".getBytes()))
+				.get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(fss.fileExists("dir/file"));
+
+		ByteBuffer content = async.readFile("dir/file").get(5,
+				TimeUnit.SECONDS);
+		Assert.assertEquals(10, content.remaining());
+
+		ByteBuffer range = ByteBuffer.allocate(3);
+		Assert.assertEquals(3, async.readFileRange("dir/file", 4, range).get(
+				5, TimeUnit.SECONDS).intValue());
+		Assert.assertEquals("456", new String(range.array()));
+
+		Assert.assertEquals(fss.calculateHashOverFile("dir/file"), async
+				.calculateHashOverFile("dir/file").get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(async.copyFile("dir/file", "copy").get(5,
+				TimeUnit.SECONDS));
+		Assert.assertEquals(2, async.recursiveListFiles().get(5,
+				TimeUnit.SECONDS).size());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		try {
+			async.readFile("missing").get(5, TimeUnit.SECONDS);
+			Assert.fail("ExecutionException");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof FileNotFoundException);
+		}
+	}
+
+	@Test
+	public void testConcurrencyLimit() throws Exception {
+		async.setConcurrencyLimit(Operation.WRITE, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		InputStream blocking = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return -1;
+			}
+		};
+		CompletableFuture<WriteResult> first = async.writeFileStream("a",
+				blocking);
+		CompletableFuture<WriteResult> second = async.writeFileStream("b",
+				new ByteArrayInputStream(new byte[1]));
+		Thread.sleep(200);
+		Assert.assertEquals(1, async.getRunning(Operation.WRITE));
+		Assert.assertEquals(1, async.getWaiting(Operation.WRITE));
+		Assert.assertFalse(second.isDone());
+		/* other operations are not held up */
+		Assert.assertNotNull(async.listFolder("").get(5, TimeUnit.SECONDS));
+
+		release.countDown();
+		first.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, second.get(5, TimeUnit.SECONDS).getSize());
+		Assert.assertEquals(0, async.getRunning(Operation.WRITE));
+	}
+
+	@Test
+	public void testReadWhileThreadsBlocked() throws Exception {
+		fss.writeFile("file", "content".getBytes());
+		final CountDownLatch release = new CountDownLatch(1);
+		InputStream blocking = new InputStream() {
+
+			@Override
+			public int read() throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return -1;
+			}
+		};
+		/* the writes may take three of the four I/O threads */
+		async.setConcurrencyLimit(Operation.WRITE, 3);
+		for (int i = 0; i < 4; i++)
+			async.writeFileStream("blocked" + i, blocking);
+		Thread.sleep(200);
+		Assert.assertEquals(1, async.getWaiting(Operation.WRITE));
+		try {
+			Assert.assertEquals(7, async.readFile("file").get(5,
+					TimeUnit.SECONDS).remaining());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void testLimiterStartsOnExecutor() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Thread io = executor.submit(new Callable<Thread>() {
+
+				public Thread call() {
+					return Thread.currentThread();
+				}
+			}).get(5, TimeUnit.SECONDS);
+			AsyncFSService.Limiter limiter = new AsyncFSService.Limiter(1,
+					executor);
+			final CompletableFuture<Void> first = new CompletableFuture<Void>();
+			final Thread[] started = new Thread[2];
+			CompletableFuture<Void> a = limiter
+					.submit(new Callable<CompletableFuture<Void>>() {
+
+						public CompletableFuture<Void> call() {
+							started[0] = Thread.currentThread();
+							return first;
+						}
+					});
+			CompletableFuture<Void> b = limiter
+					.submit(new Callable<CompletableFuture<Void>>() {
+
+						public CompletableFuture<Void> call() {
+							started[1] = Thread.currentThread();
+							return CompletableFuture.completedFuture(null);
+						}
+					});
+			Thread.sleep(100);
+			Assert.assertEquals(1, limiter.getRunning());
+			Assert.assertEquals(1, limiter.getWaiting());
+			Assert.assertSame(io, started[0]);
+
+			/* finishing on another thread starts the next on the executor */
+			Thread completer = new Thread() {
+
+				@Override
+				public void run() {
+					first.complete(null);
+				}
+			};
+			completer.start();
+			completer.join();
+			a.get(5, TimeUnit.SECONDS);
+			b.get(5, TimeUnit.SECONDS);
+			Assert.assertSame(io, started[1]);
+			Assert.assertEquals(0, limiter.getRunning());
+			Assert.assertEquals(0, limiter.getWaiting());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLimiterRejected() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		AsyncFSService.Limiter limiter = new AsyncFSService.Limiter(1,
+				executor);
+		try {
+			limiter.submit(new Callable<CompletableFuture<Void>>() {
+
+				public CompletableFuture<Void> call() {
+					return CompletableFuture.completedFuture(null);
+				}
+			}).get(5, TimeUnit.SECONDS);
+			Assert.fail("ExecutionException");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			Assert.assertTrue(cause instanceof RejectedExecutionException);
+		}
+		Assert.assertEquals(0, limiter.getRunning());
+	}
+}
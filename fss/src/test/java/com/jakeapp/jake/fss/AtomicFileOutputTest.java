@@ -0,0 +1,100 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class AtomicFileOutputTest extends FSTestCase {
+
+	private File write(File f, String content, boolean atomic)
+			throws IOException {
+		AtomicFileOutput out = new AtomicFileOutput(f, atomic, false);
+		try {
+			out.getStream().write(content.getBytes());
+			out.commit();
+		} finally {
+			out.abort();
+		}
+		return out.getFile();
+	}
+
+	private static String read(File f) throws IOException {
+		return new String(Files.readAllBytes(f.toPath()));
+	}
+
+	private void assertNoTempFiles() {
+		for (String name : mytempdir.list())
+			Assert.assertFalse(name, FileUtils.isTempFile(name));
+	}
+
+	@Test
+	public void testReplace() throws Exception {
+		File f = new File(mytempdir, "file");
+		write(f, "old", false);
+		Files.setPosixFilePermissions(f.toPath(), PosixFilePermissions
+				.fromString("rw-r-----"));
+
+		File tmp = write(f, "new", true);
+		Assert.assertFalse(tmp.equals(f));
+		Assert.assertEquals("new", read(f));
+		Set<PosixFilePermission> perms = Files.getPosixFilePermissions(f
+				.toPath());
+		Assert.assertEquals("rw-r-----", PosixFilePermissions.toString(perms));
+		assertNoTempFiles();
+	}
+
+	@Test
+	public void testAbortLeavesFileUnchanged() throws Exception {
+		File f = new File(mytempdir, "file");
+		write(f, "old", false);
+
+		AtomicFileOutput out = new AtomicFileOutput(f, true, false);
+		out.getStream().write("half".getBytes());
+		out.abort();
+		Assert.assertEquals("old", read(f));
+		assertNoTempFiles();
+	}
+
+	@Test
+	public void testSymlink() throws Exception {
+		File target = new File(mytempdir, "target");
+		Path link = new File(mytempdir, "link").toPath();
+		write(target, "old", false);
+		Files.createSymbolicLink(link, target.toPath().getFileName());
+
+		write(link.toFile(), "through the link", true);
+		Assert.assertTrue(Files.isSymbolicLink(link));
+		Assert.assertEquals("through the link", read(target));
+		assertNoTempFiles();
+	}
+
+	@Test
+	public void testHardLink() throws Exception {
+		File target = new File(mytempdir, "target");
+		File link = new File(mytempdir, "link");
+		write(target, "old", false);
+		Files.createLink(link.toPath(), target.toPath());
+
+		write(link, "through the link", true);
+		Assert.assertEquals("through the link", read(target));
+		Assert.assertEquals(2, Files.getAttribute(target.toPath(),
+				"unix:nlink"));
+		assertNoTempFiles();
+
+		/* not touched before the content is complete */
+		AtomicFileOutput out = new AtomicFileOutput(link, true, false);
+		out.getStream().write("half".getBytes());
+		Assert.assertEquals("through the link", read(target));
+		out.abort();
+		Assert.assertEquals("through the link", read(target));
+		assertNoTempFiles();
+	}
+}
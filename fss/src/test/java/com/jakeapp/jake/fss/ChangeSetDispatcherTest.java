@@ -0,0 +1,144 @@
+package com.jakeapp.jake.fss;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jakeapp.jake.fss.ChangeSetDispatcher.OverflowPolicy;
+import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
+
+public class ChangeSetDispatcherTest {
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	private final BlockingQueue<ChangeSet> received = new LinkedBlockingQueue<ChangeSet>();
+
+	/* the listener waits for this before taking the first change-set */
+	private final CountDownLatch go = new CountDownLatch(1);
+
+	private final IChangeSetListener listener = new IChangeSetListener() {
+
+		public void changesHappened(ChangeSet changes) {
+			try {
+				go.await();
+			} catch (InterruptedException e) {
+				return;
+			}
+			received.add(changes);
+		}
+	};
+
+	private long sequence = 0;
+
+	private ChangeSet set(String relpath, ModifyActions action) {
+		sequence++;
+		return new ChangeSet(sequence, sequence, sequence, Arrays
+				.asList(new FileChange(relpath, action)));
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * dispatches the first change-set and waits until the listener is stuck
+	 * with it
+	 */
+	private void blockListener(ChangeSetDispatcher d) throws Exception {
+		d.dispatch(set("first", ModifyActions.CREATED));
+		while (d.getQueueDepth() > 0)
+			Thread.sleep(5);
+	}
+
+	@Test
+	public void testInOrder() throws Exception {
+		go.countDown();
+		ChangeSetDispatcher d = new ChangeSetDispatcher(listener, 10,
+				OverflowPolicy.BLOCK, executor);
+		for (int i = 0; i < 100; i++)
+			d.dispatch(set("f" + i, ModifyActions.CREATED));
+		for (int i = 1; i <= 100; i++)
+			Assert.assertEquals(i, received.poll(5, TimeUnit.SECONDS)
+					.getSequence());
+		Assert.assertEquals(100, d.getDelivered());
+		Assert.assertTrue(d.getMaxQueueDepth() <= 10);
+		Assert.assertFalse(d.isResyncNeeded());
+	}
+
+	@Test
+	public void testDrop() throws Exception {
+		ChangeSetDispatcher d = new ChangeSetDispatcher(listener, 2,
+				OverflowPolicy.DROP, executor);
+		blockListener(d);
+		d.dispatch(set("a", ModifyActions.CREATED));
+		d.dispatch(set("b", ModifyActions.CREATED));
+		Assert.assertFalse(d.isResyncNeeded());
+		d.dispatch(set("c", ModifyActions.CREATED));
+		Assert.assertTrue(d.isResyncNeeded());
+		Assert.assertEquals(1, d.getDropped());
+
+		go.countDown();
+		Assert.assertEquals(1, received.poll(5, TimeUnit.SECONDS).getSequence());
+		Assert.assertEquals(2, received.poll(5, TimeUnit.SECONDS).getSequence());
+		Assert.assertEquals(3, received.poll(5, TimeUnit.SECONDS).getSequence());
+		Assert.assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		ChangeSetDispatcher d = new ChangeSetDispatcher(listener, 2,
+				OverflowPolicy.COALESCE, executor);
+		blockListener(d);
+		d.dispatch(set("a", ModifyActions.CREATED));
+		d.dispatch(set("b", ModifyActions.CREATED));
+		/* full: a and b are merged with this one */
+		d.dispatch(set("a", ModifyActions.MODIFIED));
+		Assert.assertEquals(1, d.getQueueDepth());
+		d.dispatch(set("b", ModifyActions.DELETED));
+		d.dispatch(set("c", ModifyActions.CREATED));
+		Assert.assertEquals(1, d.getQueueDepth());
+		Assert.assertEquals(4, d.getCoalesced());
+
+		go.countDown();
+		received.poll(5, TimeUnit.SECONDS);
+		ChangeSet merged = received.poll(5, TimeUnit.SECONDS);
+		Assert.assertEquals(6, merged.getSequence());
+		Assert.assertEquals(2, merged.getStartedAt());
+		Assert.assertEquals("[a:CREATED, c:CREATED]", merged.getChanges()
+				.toString());
+		Assert.assertFalse(d.isResyncNeeded());
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		final ChangeSetDispatcher d = new ChangeSetDispatcher(listener, 1,
+				OverflowPolicy.BLOCK, executor);
+		blockListener(d);
+		d.dispatch(set("a", ModifyActions.CREATED));
+		final CountDownLatch dispatched = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+
+			public void run() {
+				d.dispatch(set("b", ModifyActions.CREATED));
+				dispatched.countDown();
+			}
+		});
+		Assert.assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS));
+		go.countDown();
+		Assert.assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+		for (int i = 1; i <= 3; i++)
+			Assert.assertEquals(i, received.poll(5, TimeUnit.SECONDS)
+					.getSequence());
+		Assert.assertTrue(d.getMaxLatency() >= 200);
+	}
+}
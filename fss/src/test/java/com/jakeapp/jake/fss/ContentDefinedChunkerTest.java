@@ -0,0 +1,76 @@
+package com.jakeapp.jake.fss;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ContentDefinedChunkerTest {
+
+	private final ContentDefinedChunker chunker = new ContentDefinedChunker(
+			256, 1024, 4096);
+
+	private List<Chunk> chunk(byte[] content) throws Exception {
+		return chunker.chunk(new ByteArrayInputStream(content));
+	}
+
+	private static byte[] random(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+
+	@Test
+	public void testChunksCoverContent() throws Exception {
+		byte[] content = random(200000);
+		long offset = 0;
+		MessageDigest md = MessageDigest.getInstance(HashValue.DIGEST);
+		for (Chunk c : chunk(content)) {
+			Assert.assertEquals(offset, c.getOffset());
+			Assert.assertTrue(c.getLength() <= 4096);
+			md.update(content, (int) offset, c.getLength());
+			Assert.assertEquals(new HashValue(md.digest()), c.getHash());
+			offset += c.getLength();
+		}
+		Assert.assertEquals(content.length, offset);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		Assert.assertTrue(chunk(new byte[0]).isEmpty());
+	}
+
+	@Test
+	public void testMaxSize() throws Exception {
+		/* constant content never hits a boundary */
+		List<Chunk> chunks = chunk(new byte[10000]);
+		Assert.assertEquals(3, chunks.size());
+		Assert.assertEquals(4096, chunks.get(0).getLength());
+		Assert.assertEquals(10000 - 2 * 4096, chunks.get(2).getLength());
+	}
+
+	@Test
+	public void testInsertionKeepsOtherChunks() throws Exception {
+		byte[] content = random(200000);
+		byte[] edited = new byte[content.length + 10];
+		System.arraycopy(content, 0, edited, 0, 100000);
+		System.arraycopy(content, 100000, edited, 100010, 100000);
+
+		Set<HashValue> before = new HashSet<HashValue>();
+		for (Chunk c : chunk(content))
+			before.add(c.getHash());
+		List<Chunk> after = chunk(edited);
+		int changed = 0;
+		for (Chunk c : after) {
+			if (!before.contains(c.getHash()))
+				changed++;
+		}
+		Assert.assertTrue("changed " + changed, changed <= 2);
+	}
+}
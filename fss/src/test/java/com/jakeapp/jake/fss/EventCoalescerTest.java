@@ -0,0 +1,165 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.jakeapp.jake.fss.IModificationListener.ModifyActions;
+
+public class EventCoalescerTest {
+
+	private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+	private final IModificationListener target = new IModificationListener() {
+
+		public void fileModified(File f, ModifyActions action) {
+			events.add(f.getName() + ":" + action);
+		}
+
+		public void fileMoved(File from, File to) {
+			events.add(from.getName() + ">" + to.getName() + ":MOVED");
+		}
+	};
+
+	private EventCoalescer coalescer;
+
+	@After
+	public void tearDown() {
+		if (coalescer != null)
+			coalescer.shutdown();
+	}
+
+	@Test
+	public void testMerge() {
+		Assert.assertEquals(ModifyActions.CREATED, EventCoalescer.merge(
+				ModifyActions.CREATED, ModifyActions.MODIFIED));
+		Assert.assertNull(EventCoalescer.merge(ModifyActions.CREATED,
+				ModifyActions.DELETED));
+		Assert.assertEquals(ModifyActions.MODIFIED, EventCoalescer.merge(
+				ModifyActions.DELETED, ModifyActions.CREATED));
+		Assert.assertEquals(ModifyActions.DELETED, EventCoalescer.merge(
+				ModifyActions.MODIFIED, ModifyActions.DELETED));
+		Assert.assertEquals(ModifyActions.MODIFIED, EventCoalescer.merge(
+				ModifyActions.MODIFIED, ModifyActions.MODIFIED));
+		Assert.assertEquals(ModifyActions.MODIFIED, EventCoalescer.merge(
+				null, ModifyActions.MODIFIED));
+	}
+
+	@Test
+	public void testQuietPeriod() throws Exception {
+		coalescer = new EventCoalescer(target, 100, 10000);
+		coalescer.fileModified(new File("a"), ModifyActions.CREATED);
+		coalescer.fileModified(new File("b"), ModifyActions.MODIFIED);
+		coalescer.fileModified(new File("a"), ModifyActions.MODIFIED);
+		coalescer.fileModified(new File("c"), ModifyActions.CREATED);
+		coalescer.fileModified(new File("c"), ModifyActions.DELETED);
+		coalescer.fileModified(new File("b"), ModifyActions.MODIFIED);
+		Assert.assertNull(events.poll(50, TimeUnit.MILLISECONDS));
+
+		Assert.assertEquals("a:CREATED", events.poll(1, TimeUnit.SECONDS));
+		Assert.assertEquals("b:MODIFIED", events.poll(1, TimeUnit.SECONDS));
+		Assert.assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testMaxLatency() throws Exception {
+		coalescer = new EventCoalescer(target, 100, 300);
+		long start = System.currentTimeMillis();
+		/* never quiet for long enough */
+		while (events.isEmpty() && System.currentTimeMillis() - start < 2000) {
+			coalescer.fileModified(new File("busy"), ModifyActions.MODIFIED);
+			Thread.sleep(20);
+		}
+		Assert.assertEquals("busy:MODIFIED", events.poll());
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		coalescer = new EventCoalescer(target, 10000, 10000);
+		coalescer.fileModified(new File("gone"), ModifyActions.DELETED);
+		coalescer.fileModified(new File("gone"), ModifyActions.CREATED);
+		coalescer.flush();
+		Assert.assertEquals("gone:MODIFIED", events.poll());
+		Assert.assertNull(events.poll());
+	}
+
+	@Test
+	public void testMoves() throws Exception {
+		coalescer = new EventCoalescer(target, 10000, 10000);
+		coalescer.fileMoved(new File("a"), new File("b"));
+		coalescer.fileMoved(new File("c"), new File("d"));
+		coalescer.fileModified(new File("d"), ModifyActions.MODIFIED);
+		coalescer.flush();
+		Assert.assertEquals("a>b:MOVED", events.poll());
+		Assert.assertEquals("c:DELETED", events.poll());
+		Assert.assertEquals("d:CREATED", events.poll());
+		Assert.assertNull(events.poll());
+
+		/* moved away right after it was created */
+		coalescer.fileModified(new File("e"), ModifyActions.CREATED);
+		coalescer.fileMoved(new File("e"), new File("f"));
+		coalescer.flush();
+		Assert.assertEquals("f:CREATED", events.poll());
+		Assert.assertNull(events.poll());
+	}
+
+	@Test(timeout = 10000)
+	public void testFlushInOrder() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		coalescer = new EventCoalescer(new IModificationListener() {
+
+			public void fileModified(File f, ModifyActions action) {
+				if (f.getName().equals("slow")) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				target.fileModified(f, action);
+			}
+
+			public void fileMoved(File from, File to) {
+				target.fileMoved(from, to);
+			}
+		}, 10000, 10000);
+		coalescer.fileModified(new File("slow"), ModifyActions.MODIFIED);
+		Thread first = new Thread() {
+
+			@Override
+			public void run() {
+				coalescer.flush();
+			}
+		};
+		first.start();
+		entered.await();
+
+		/* a window closed while the one before is still being passed on */
+		coalescer.fileModified(new File("next"), ModifyActions.MODIFIED);
+		Thread second = new Thread() {
+
+			@Override
+			public void run() {
+				coalescer.flush();
+			}
+		};
+		second.start();
+		Assert.assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		first.join();
+		second.join();
+		Assert.assertEquals("slow:MODIFIED", events.poll());
+		Assert.assertEquals("next:MODIFIED", events.poll());
+	}
+}
@@ -8,8 +8,23 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
 
 import junit.framework.Assert;
 
@@ -137,6 +152,38 @@ public class FSServiceOuterTest extends FSServiceTestCase {
 		}
 	}
 
+	@Test
+	public void testReadFileRange() throws Exception {
+		String filename = "/range.out";
+		FileWriter w = new FileWriter(mytempdir + File.separator + filename);
+		w.write("0123456789");
+		w.close();
+
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		Assert.assertEquals(4, fss.readFileRange(filename, 3, buf));
+		Assert.assertEquals("3456", new String(buf.array()));
+		buf.clear();
+		Assert.assertEquals(2, fss.readFileRange(filename, 8, buf));
+		buf.clear();
+		Assert.assertEquals(-1, fss.readFileRange(filename, 10, buf));
+
+		FileChannel channel = fss.openFileChannel(filename);
+		try {
+			Assert.assertEquals(10, channel.size());
+			try {
+				channel.write(ByteBuffer.wrap(new byte[1]));
+				Assert.fail("NonWritableChannelException");
+			} catch (NonWritableChannelException e) {
+			}
+		} finally {
+			channel.close();
+		}
+
+		MappedByteBuffer map = fss.mapFile(filename, 5, 5);
+		Assert.assertEquals('5', map.get());
+		Assert.assertEquals(4, map.remaining());
+	}
+
 	@Test
 	@Prerequisite(checker = DesktopSupportedChecker.class)
 	public void testFolderExists() throws Exception {
@@ -252,6 +299,145 @@ public class FSServiceOuterTest extends FSServiceTestCase {
 		Assert.assertTrue(s.isEmpty());
 	}
 
+	@Test(timeout = 10000)
+	public void testChangeSetListener() throws Exception {
+		wipeRoot();
+		fss.setRootPath(new ProjectDir(mytempdir));
+		final BlockingQueue<ChangeSet> sets = new LinkedBlockingQueue<ChangeSet>();
+		final BlockingQueue<String> single = new LinkedBlockingQueue<String>();
+		fss.addChangeSetListener(new IChangeSetListener() {
+
+			public void changesHappened(ChangeSet changes) {
+				sets.add(changes);
+			}
+		});
+		fss.addModificationListener(new IFileModificationListener() {
+
+			public void fileModified(String relpath, ModifyActions action) {
+				single.add(relpath + ":" + action);
+			}
+		});
+		for (int i = 0; i < 3; i++)
+			new File(fss.getRootPath(), "batch" + i).createNewFile();
+
+		Set<String> seen = new HashSet<String>();
+		long sequence = 0;
+		while (seen.size() < 3) {
+			ChangeSet changes = sets.take();
+			Assert.assertTrue(changes.getSequence() > sequence);
+			Assert.assertFalse(changes.isEmpty());
+			Assert.assertTrue(changes.getStartedAt() <= changes
+					.getCompletedAt());
+			sequence = changes.getSequence();
+			for (FileChange c : changes) {
+				Assert.assertEquals(ModifyActions.CREATED, c.getAction());
+				seen.add(c.getRelpath());
+			}
+		}
+		/* the per-file listener got the same, one by one */
+		for (int i = 0; i < 3; i++)
+			Assert.assertTrue(seen.remove(single.take().replace(":CREATED",
+					"")));
+	}
+
+	@Test(timeout = 10000)
+	public void testChangesSinceSnapshot() throws Exception {
+		wipeRoot();
+		File cache = File.createTempFile("fss", ".cache");
+		cache.delete();
+		try {
+			fss.writeFile("kept", "old".getBytes());
+			fss.setWatcherCacheDir(cache);
+			fss.setRootPath(new ProjectDir(mytempdir));
+			fss.unsetRootPath();
+
+			/* while the project was closed */
+			Files.write(new File(mytempdir, "kept").toPath(), "changed"
+					.getBytes());
+			new File(mytempdir, "new").createNewFile();
+
+			fss.setRootPath(new ProjectDir(mytempdir));
+			final BlockingQueue<ChangeSet> sets =
+					new LinkedBlockingQueue<ChangeSet>();
+			fss.addChangeSetListener(new IChangeSetListener() {
+
+				public void changesHappened(ChangeSet changes) {
+					sets.add(changes);
+				}
+			});
+			Set<String> seen = new HashSet<String>();
+			for (FileChange c : sets.take())
+				seen.add(c.getRelpath() + ":" + c.getAction());
+			Assert.assertEquals(2, seen.size());
+			Assert.assertTrue(seen.contains("kept:MODIFIED"));
+			Assert.assertTrue(seen.contains("new:CREATED"));
+		} finally {
+			fss.setWatcherCacheDir(null);
+			fss.setRootPath(new ProjectDir(mytempdir));
+			recursiveDelete(cache);
+		}
+	}
+
+	@Test
+	public void testAtomicWriteKeepsLinks() throws Exception {
+		Assert.assertFalse(fss.isAtomicWrites());
+		fss.setAtomicWrites(true);
+		fss.writeFile("target", "old".getBytes());
+		Path target = new File(fss.getRootPath(), "target").toPath();
+		Path symlink = new File(fss.getRootPath(), "symlink").toPath();
+		Path hardlink = new File(fss.getRootPath(), "hardlink").toPath();
+		try {
+			Files.createSymbolicLink(symlink, target.getFileName());
+			Files.createLink(hardlink, target);
+		} catch (UnsupportedOperationException e) {
+			return;
+		}
+
+		fss.writeFile("symlink", "through the symlink".getBytes());
+		Assert.assertTrue(Files.isSymbolicLink(symlink));
+		Assert.assertEquals("through the symlink", new String(fss
+				.readFile("target")));
+
+		fss.writeFile("hardlink", "through the hard link".getBytes());
+		Assert.assertEquals("through the hard link", new String(fss
+				.readFile("target")));
+	}
+
+	@Test(timeout = 20000)
+	public void testUnsetRootPathWithBlockedListener() throws Exception {
+		wipeRoot();
+		fss.setListenerQueueCapacity(1);
+		fss.setListenerOverflowPolicy(ChangeSetDispatcher.OverflowPolicy.BLOCK);
+		fss.setRootPath(new ProjectDir(mytempdir));
+		final Semaphore entered = new Semaphore(0);
+		final CountDownLatch release = new CountDownLatch(1);
+		fss.addChangeSetListener(new IChangeSetListener() {
+
+			public void changesHappened(ChangeSet changes) {
+				entered.release();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		try {
+			new File(fss.getRootPath(), "blocked0").createNewFile();
+			entered.acquire();
+			new File(fss.getRootPath(), "blocked1").createNewFile();
+			ChangeSetDispatcher d = fss.getDispatchers().iterator().next();
+			while (d.getQueueDepth() < 1)
+				Thread.sleep(50);
+			/* the next scan blocks in dispatch, inside the watcher */
+			new File(fss.getRootPath(), "blocked2").createNewFile();
+			Thread.sleep(2000);
+
+			fss.unsetRootPath();
+		} finally {
+			release.countDown();
+		}
+	}
+
 	@Test(timeout = 10000)
 	@Prerequisite(checker = DesktopSupportedChecker.class)
 	public void testModificationListener() throws Exception {
@@ -380,6 +566,71 @@ public class FSServiceOuterTest extends FSServiceTestCase {
 		wipeRoot();
 	}
 
+	@Test
+	public void testIndexedQueries() throws Exception {
+		wipeRoot();
+		fss.setIndexStaleness(60000);
+		try {
+			/* changes through the service are seen right away */
+			fss.writeFile("idx/a", "hello".getBytes());
+			Assert.assertTrue(fss.fileExists("idx/a"));
+			Assert.assertTrue(fss.folderExists("idx"));
+			Assert.assertEquals(5, fss.getFileSize("idx/a"));
+			Assert.assertEquals(1, fss.listFolder("idx").size());
+			Assert.assertTrue(fss.moveFile("idx/a", "idx/b"));
+			Assert.assertFalse(fss.fileExists("idx/a"));
+			Assert.assertTrue(fss.fileExists("idx/b"));
+			Assert.assertTrue(fss.deleteFile("idx/b"));
+			Assert.assertFalse(fss.fileExists("idx/b"));
+			Assert.assertFalse(fss.folderExists("idx"));
+		} finally {
+			fss.setIndexStaleness(0);
+		}
+		wipeRoot();
+	}
+
+	@Test
+	public void testWalk() throws Exception {
+		wipeRoot();
+		recursiveDelete(fss.getRootPath());
+
+		String[] content = { "B", "B/foo", "B/foo/bar", "C" };
+		createFiles("", content);
+		fss.writeFile("B/foo/bar/x", "hello".getBytes());
+		fss.writeFile("B/y", new byte[0]);
+		fss.writeFile("C/z", new byte[3]);
+		new File(fss.getFullpath("B"), "." + "w" + FileUtils.TEMP_SUFFIX)
+				.createNewFile();
+		new File(fss.getFullpath("B"), "in:valid").mkdir();
+		new File(fss.getFullpath("B") + "/in:valid", "a").createNewFile();
+
+		Stream<FileInfo> walk = fss.walk("B");
+		Map<String, FileInfo> found = new HashMap<String, FileInfo>();
+		try {
+			Iterator<FileInfo> it = walk.iterator();
+			while (it.hasNext()) {
+				FileInfo fi = it.next();
+				found.put(fi.getRelpath(), fi);
+			}
+		} finally {
+			walk.close();
+		}
+		Assert.assertEquals(found.keySet().toString(), 4, found.size());
+		Assert.assertTrue(found.get("B/foo").isFolder());
+		Assert.assertTrue(found.get("B/foo/bar").isFolder());
+		Assert.assertEquals(5, found.get("B/foo/bar/x").getSize());
+		Assert.assertTrue(found.get("B/foo/bar/x").isFile());
+		Assert.assertEquals(0, found.get("B/y").getSize());
+
+		walk = fss.walk("");
+		try {
+			Assert.assertEquals(7, walk.count());
+		} finally {
+			walk.close();
+		}
+		wipeRoot();
+	}
+
 	@Test
 	@Prerequisite(checker = DesktopSupportedChecker.class)
 	public void testImportFile() throws Exception {
@@ -34,11 +34,13 @@ public class FSServiceTestCase extends FSTestCase {
 		HashValue.DIGEST = "SHA-512";
 		HashValue.N_BITS = 512;
 
-		if ((new DesktopSupportedChecker()).satisfy()) {
+		/* without a desktop, only launching files doesn't work */
+		if ((new DesktopSupportedChecker()).satisfy())
 			fss = new FSService();
-			fss.setRootPath(new ProjectDir(mytempdir));
-			Assert.assertEquals("rootpath", mytempdir, fss.getRootPath());
-		}
+		else
+			fss = new FSService(null);
+		fss.setRootPath(new ProjectDir(mytempdir));
+		Assert.assertEquals("rootpath", mytempdir, fss.getRootPath());
 	}
 
 	@Override
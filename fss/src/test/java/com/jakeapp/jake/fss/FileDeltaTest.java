@@ -0,0 +1,177 @@
+package com.jakeapp.jake.fss;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileDeltaTest {
+
+	private static final int BLOCK = 512;
+
+	private File basis;
+
+	@Before
+	public void setUp() throws Exception {
+		basis = File.createTempFile("delta", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		basis.delete();
+	}
+
+	private static byte[] random(int size, long seed) {
+		byte[] b = new byte[size];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+
+	private FileDelta roundtrip(byte[] old, byte[] target) throws Exception {
+		Files.write(basis.toPath(), old);
+		FileSignature sig = FileSignature.calculate(new ByteArrayInputStream(
+				old), BLOCK);
+		ByteArrayOutputStream sigBytes = new ByteArrayOutputStream();
+		sig.writeTo(sigBytes);
+		sig = FileSignature.readFrom(new ByteArrayInputStream(sigBytes
+				.toByteArray()));
+
+		FileDelta delta = FileDelta.create(sig, new ByteArrayInputStream(
+				target));
+		ByteArrayOutputStream deltaBytes = new ByteArrayOutputStream();
+		delta.writeTo(deltaBytes);
+		delta = FileDelta.readFrom(new ByteArrayInputStream(deltaBytes
+				.toByteArray()));
+
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		InputStream in = delta.apply(basis);
+		byte[] buf = new byte[1000];
+		int n;
+		while ((n = in.read(buf)) >= 0)
+			result.write(buf, 0, n);
+		in.close();
+		Assert.assertTrue(Arrays.equals(target, result
+				.toByteArray()));
+		Assert.assertEquals(target.length, delta.getTargetLength());
+		return delta;
+	}
+
+	@Test
+	public void testUnchanged() throws Exception {
+		byte[] old = random(100000, 1);
+		FileDelta delta = roundtrip(old, old);
+		Assert.assertEquals(0, delta.getLiteralBytes());
+		Assert.assertEquals(1, delta.getInstructions().size());
+	}
+
+	@Test
+	public void testInsertion() throws Exception {
+		byte[] old = random(100000, 1);
+		byte[] target = new byte[old.length + 7];
+		System.arraycopy(old, 0, target, 0, 50000);
+		System.arraycopy(random(7, 2), 0, target, 50000, 7);
+		System.arraycopy(old, 50000, target, 50007, 50000);
+		FileDelta delta = roundtrip(old, target);
+		Assert.assertTrue(delta.getLiteralBytes() <= BLOCK + 7);
+	}
+
+	@Test
+	public void testAppendAndShortLastBlock() throws Exception {
+		byte[] old = random(10300, 1);
+		byte[] target = new byte[old.length + 100];
+		System.arraycopy(random(100, 2), 0, target, 0, 100);
+		System.arraycopy(old, 0, target, 100, old.length);
+		FileDelta delta = roundtrip(old, target);
+		Assert.assertEquals(100, delta.getLiteralBytes());
+	}
+
+	@Test
+	public void testUnrelatedAndEmpty() throws Exception {
+		roundtrip(random(5000, 1), random(300000, 2));
+		roundtrip(new byte[0], random(3000, 2));
+		roundtrip(random(3000, 1), new byte[0]);
+	}
+
+	private static FileDelta delta(byte[] old, byte[] target)
+			throws Exception {
+		return FileDelta.create(FileSignature.calculate(
+				new ByteArrayInputStream(old), BLOCK),
+				new ByteArrayInputStream(target));
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptHashLength() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeShort(-1);
+		FileDelta.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+	}
+
+	@Test
+	public void testApplyToHardLinkedFile() throws Exception {
+		byte[] old = random(100000, 1);
+		byte[] target = old.clone();
+		System.arraycopy(random(100, 2), 0, target, 5000, 100);
+		Files.write(basis.toPath(), old);
+		File link = new File(basis.getPath() + ".link");
+		try {
+			try {
+				Files.createLink(link.toPath(), basis.toPath());
+			} catch (UnsupportedOperationException e) {
+				return;
+			}
+
+			FSService.applyDeltaAbs(basis, delta(old, target), false);
+			Assert.assertTrue(Arrays.equals(target, Files.readAllBytes(basis
+					.toPath())));
+			/* still the same file */
+			Assert.assertTrue(Arrays.equals(target, Files.readAllBytes(link
+					.toPath())));
+		} finally {
+			link.delete();
+		}
+	}
+
+	@Test
+	public void testBrokenDeltaLeavesFileUnchanged() throws Exception {
+		byte[] other = random(100000, 1);
+		byte[] old = random(100000, 3);
+		Files.write(basis.toPath(), old);
+		/* made for another basis: the result has the wrong hash */
+		try {
+			FSService.applyDeltaAbs(basis, delta(other, other), false);
+			Assert.fail("IOException");
+		} catch (IOException e) {
+		}
+		Assert.assertTrue(Arrays.equals(old, Files.readAllBytes(basis
+				.toPath())));
+		/* refers to blocks past the end */
+		try {
+			FSService.applyDeltaAbs(basis, delta(random(200000, 1), random(
+					200000, 1)), false);
+			Assert.fail("IOException");
+		} catch (IOException e) {
+		}
+		Assert.assertTrue(Arrays.equals(old, Files.readAllBytes(basis
+				.toPath())));
+		/* no temporary files left */
+		Assert.assertEquals(0, basis.getParentFile().list(
+				new FilenameFilter() {
+
+					public boolean accept(File dir, String name) {
+						return name.startsWith("." + basis.getName());
+					}
+				}).length);
+	}
+}
@@ -2,7 +2,16 @@ package com.jakeapp.jake.fss;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
@@ -330,6 +339,447 @@ public class FolderWatchTest extends FSTestCase {
 		}
 	}
 
+	/**
+	 * remembers events as "name:ACTION"
+	 */
+	private static class EventQueue implements IModificationListener {
+
+		BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+
+		public void fileModified(File f, ModifyActions action) {
+			events.add(f.getName() + ":" + action);
+		}
+
+		String next() throws InterruptedException {
+			return events.poll(3, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void testNativeEngine() throws Exception {
+		File f = new File(mytempdir, "native");
+		File dir = new File(mytempdir, "newfolder");
+		File f2 = new File(dir, "nested");
+		EventQueue q = new EventQueue();
+		try {
+			fw = new FolderWatcher(mytempdir, new NativeWatcherEngine(200));
+			fw.initialRun();
+			fw.addListener(q);
+			fw.run();
+			/* let the engine do its first scan, which does not settle */
+			Thread.sleep(500);
+
+			writeInFile(f, "foo");
+			Assert.assertEquals("native:CREATED", q.next());
+
+			awaitNextTimeUnit();
+			writeInFile(f, "bar");
+			Assert.assertEquals("native:MODIFIED", q.next());
+
+			/* new folders are picked up including their content */
+			dir.mkdir();
+			writeInFile(f2, "baz");
+			Assert.assertEquals("nested:CREATED", q.next());
+
+			recursiveDelete(dir);
+			Assert.assertEquals("nested:DELETED", q.next());
+
+			f.delete();
+			Assert.assertEquals("native:DELETED", q.next());
+			Assert.assertNull(q.events.poll(500, TimeUnit.MILLISECONDS));
+
+			fw.cancel();
+		} catch (Exception e) {
+			fw.cancel();
+			throw e;
+		}
+	}
+
+	@Test
+	public void testUnchangedFolder() throws Exception {
+		File f = new File(mytempdir, "in_old_folder");
+		writeInFile(f, "foo");
+		/* make the folder timestamp old enough to be trusted */
+		Thread.sleep(FolderIndex.TIMESTAMP_GRANULARITY + 500);
+
+		EventQueue q = new EventQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.initialRun();
+		fw.addListener(q);
+
+		/* in-place modification does not touch the folder */
+		awaitNextTimeUnit();
+		writeInFile(f, "bar");
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("in_old_folder:MODIFIED", q.events.poll());
+
+		/* trusting the folder, the next one goes unnoticed */
+		fw.setTrustFolderTimestamps(true);
+		awaitNextTimeUnit();
+		writeInFile(f, "baz");
+		fw.scan(mytempdir, true);
+		Assert.assertNull(q.events.poll());
+
+		/* unless the engine was told about it */
+		fw.scan(Collections.singletonMap(mytempdir, false), true);
+		Assert.assertEquals("in_old_folder:MODIFIED", q.events.poll());
+
+		/* but adding files changes the folder */
+		writeInFile(new File(mytempdir, "new_in_old_folder"), "foo");
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("new_in_old_folder:CREATED", q.events.poll());
+		fw.cancel();
+	}
+
+	@Test
+	public void testUnchangedFolderListedAfterAll() throws Exception {
+		File a = new File(mytempdir, "a");
+		File z = new File(mytempdir, "z");
+		writeInFile(a, "foo");
+		writeInFile(z, "foo");
+		Thread.sleep(FolderIndex.TIMESTAMP_GRANULARITY + 500);
+
+		EventQueue q = new EventQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.initialRun();
+		fw.addListener(q);
+
+		/* a known file vanishes without the folder timestamp moving */
+		long folderModified = mytempdir.lastModified();
+		awaitNextTimeUnit();
+		writeInFile(a, "foobar");
+		z.delete();
+		mytempdir.setLastModified(folderModified);
+		fw.scan(mytempdir, true);
+		Set<String> events = new HashSet<String>(q.events);
+		Assert.assertEquals(2, events.size());
+		Assert.assertTrue(events.contains("a:MODIFIED"));
+		Assert.assertTrue(events.contains("z:DELETED"));
+		fw.cancel();
+	}
+
+	@Test
+	public void testTempFilesIgnored() throws Exception {
+		EventQueue q = new EventQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.initialRun();
+		fw.addListener(q);
+
+		File tmp = new File(mytempdir, ".target" + FileUtils.TEMP_SUFFIX);
+		writeInFile(tmp, "half");
+		fw.scan(mytempdir, true);
+		Assert.assertNull(q.events.poll());
+
+		Assert.assertTrue(tmp.renameTo(new File(mytempdir, "target")));
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("target:CREATED", q.events.poll());
+		Assert.assertNull(q.events.poll());
+		fw.cancel();
+	}
+
+	@Test
+	public void testHashHint() throws Exception {
+		EventQueue q = new EventQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.initialRun();
+		fw.addListener(q);
+
+		File f = new File(mytempdir, "hinted");
+		writeInFile(f, "foo");
+		/* a wrong hint, to see it is used */
+		fw.addHashHint(f, f.length(), f.lastModified(), new HashValue(
+				new byte[] { 1, 2, 3 }));
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("hinted:CREATED", q.events.poll());
+
+		/* same content again: differs from the hinted hash */
+		awaitNextTimeUnit();
+		writeInFile(f, "foo");
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("hinted:MODIFIED", q.events.poll());
+		fw.cancel();
+	}
+
+	@Test
+	public void testParallelScan() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			File dir = new File(mytempdir, "d" + i + File.separator + "sub");
+			dir.mkdirs();
+			writeInFile(new File(dir, "a" + i), "a");
+			writeInFile(new File(dir.getParentFile(), "b" + i), "b");
+		}
+
+		EventQueue sequential = new EventQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.addListener(sequential);
+		fw.initialRun();
+		fw.cancel();
+
+		EventQueue parallel = new EventQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.setParallelism(4);
+		fw.addListener(parallel);
+		fw.initialRun();
+
+		Assert.assertEquals(40, sequential.events.size());
+		Assert.assertEquals(new ArrayList<String>(sequential.events),
+				new ArrayList<String>(parallel.events));
+
+		recursiveDelete(new File(mytempdir, "d3"));
+		fw.scan(mytempdir, true);
+		Assert.assertEquals(42, parallel.events.size());
+		fw.cancel();
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		File snapshot = File.createTempFile("fss", ".snapshot");
+		snapshot.delete();
+		File a = new File(mytempdir, "a");
+		File b = new File(mytempdir, "b");
+		File c = new File(mytempdir, "c");
+		try {
+			writeInFile(a, "a");
+			writeInFile(b, "b");
+
+			fw = new FolderWatcher(mytempdir, 100);
+			fw.setSnapshotFile(snapshot);
+			fw.initialRun();
+			fw.cancel();
+			Assert.assertTrue(snapshot.exists());
+
+			/* while we were away */
+			awaitNextTimeUnit();
+			writeInFile(a, "changed");
+			b.delete();
+			writeInFile(c, "c");
+
+			EventQueue q = new EventQueue();
+			fw = new FolderWatcher(mytempdir, 100);
+			fw.setSnapshotFile(snapshot);
+			fw.addListener(q);
+			fw.initialRun();
+			fw.cancel();
+			Assert.assertEquals(3, q.events.size());
+			Assert.assertTrue(q.events.contains("a:MODIFIED"));
+			Assert.assertTrue(q.events.contains("b:DELETED"));
+			Assert.assertTrue(q.events.contains("c:CREATED"));
+		} finally {
+			snapshot.delete();
+		}
+	}
+
+	@Test
+	public void testHashExecutor() throws Exception {
+		for (int i = 0; i < 10; i++)
+			writeInFile(new File(mytempdir, "f" + i), "foo" + i);
+
+		EventQueue q = new EventQueue();
+		HashExecutor executor = new HashExecutor(
+				new StreamFileHashCalculator(), 3, 2);
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.setHashExecutor(executor);
+		fw.addListener(q);
+		fw.initialRun();
+		Assert.assertEquals(10, q.events.size());
+
+		awaitNextTimeUnit();
+		writeInFile(new File(mytempdir, "f3"), "foo3");
+		writeInFile(new File(mytempdir, "f4"), "changed");
+		new File(mytempdir, "f5").delete();
+		q.events.clear();
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("f5:DELETED", q.events.poll());
+		Assert.assertEquals("f4:MODIFIED", q.events.poll());
+		Assert.assertNull(q.events.poll());
+
+		fw.cancel();
+	}
+
+	@Test
+	public void testHashFailsAfterScan() throws Exception {
+		File unreadable = new File(mytempdir, "unreadable");
+		File gone = new File(mytempdir, "gone");
+		writeInFile(unreadable, "a");
+		writeInFile(gone, "b");
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.initialRun();
+
+		awaitNextTimeUnit();
+		writeInFile(unreadable, "changed");
+		writeInFile(gone, "changed");
+		/* reading fails, or the file is deleted, between scan and hash */
+		HashExecutor failing = new HashExecutor(
+				new StreamFileHashCalculator(), 1) {
+
+			@Override
+			public CompletableFuture<HashValue> submit(File f) {
+				if (f.getName().equals("gone")) {
+					f.delete();
+					return super.submit(f);
+				}
+				return CompletableFuture.completedFuture(null);
+			}
+		};
+		EventQueue q = new EventQueue();
+		fw.setHashExecutor(failing);
+		fw.addListener(q);
+		fw.scan(mytempdir, true);
+		Assert.assertNull(q.events.poll());
+
+		/* the entries stayed as they were, so the next scan tries again */
+		fw.setHashExecutor(null);
+		fw.scan(mytempdir, true);
+		Assert.assertEquals(2, q.events.size());
+		Assert.assertTrue(q.events.contains("unreadable:MODIFIED"));
+		Assert.assertTrue(q.events.contains("gone:DELETED"));
+
+		fw.cancel();
+		failing.shutdown();
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		new File(mytempdir, "dir" + File.separator + "sub").mkdirs();
+		File f = new File(mytempdir, "dir" + File.separator + "file");
+		writeInFile(f, "foo");
+		fw = new FolderWatcher(mytempdir, 100);
+		/* nothing scanned yet */
+		Assert.assertNull(fw.lookup("dir/file", 60000));
+		fw.initialRun();
+
+		FileInfo fi = fw.lookup("/dir/file", 60000);
+		Assert.assertTrue(fi.isFile());
+		Assert.assertEquals(3, fi.getSize());
+		Assert.assertEquals(f.lastModified(), fi.getLastModified());
+		Assert.assertTrue(fw.lookup("dir/sub/", 60000).isFolder());
+		Assert.assertTrue(fw.lookup("", 60000).isFolder());
+		Assert.assertSame(FolderWatcher.NOT_FOUND, fw.lookup("dir/nothing",
+				60000));
+		Assert.assertEquals(2, fw.list("dir", 60000).size());
+		/* not below a folder the index knows */
+		Assert.assertNull(fw.lookup("dir/nothing/file", 60000));
+
+		/* too old */
+		Thread.sleep(20);
+		Assert.assertNull(fw.lookup("dir/file", 10));
+
+		/* changed from outside: not trusted until scanned again */
+		writeInFile(f, "foobar");
+		fw.invalidate(f);
+		Assert.assertNull(fw.lookup("dir/file", 60000));
+		Assert.assertNull(fw.list("", 60000));
+		fw.scan(mytempdir, true);
+		Assert.assertEquals(6, fw.lookup("dir/file", 60000).getSize());
+		fw.cancel();
+		Assert.assertNull(fw.lookup("dir/file", 60000));
+	}
+
+	/**
+	 * stands in for the JDK fallback, by name
+	 */
+	private static class PollingWatchService implements WatchService {
+
+		public void close() {
+		}
+
+		public WatchKey poll() {
+			return null;
+		}
+
+		public WatchKey poll(long timeout, TimeUnit unit) {
+			return null;
+		}
+
+		public WatchKey take() {
+			return null;
+		}
+	}
+
+	@Test
+	public void testPollingWatchServiceDetected() throws Exception {
+		Assert.assertTrue(NativeWatcherEngine
+				.isPolling(new PollingWatchService()));
+		Assert.assertFalse(NativeWatcherEngine
+				.isPolling(new PollingWatchService() {
+				}));
+	}
+
+	private static class MoveQueue extends EventQueue {
+
+		@Override
+		public void fileMoved(File from, File to) {
+			events.add(from.getParentFile().getName() + "/" + from.getName()
+					+ ">" + to.getParentFile().getName() + "/" + to.getName()
+					+ ":MOVED");
+		}
+	}
+
+	@Test
+	public void testMoveDetection() throws Exception {
+		HashExecutor executor = new HashExecutor(
+				new StreamFileHashCalculator(), 2);
+		checkMoveDetection(executor);
+		executor.shutdown();
+	}
+
+	@Test
+	public void testMoveDetectionHashingInline() throws Exception {
+		checkMoveDetection(null);
+	}
+
+	private void checkMoveDetection(HashExecutor executor) throws Exception {
+		File dir = new File(mytempdir, "dir");
+		dir.mkdir();
+		writeInFile(new File(dir, "a"), "aaa");
+		writeInFile(new File(dir, "b"), "bbb");
+		MoveQueue q = new MoveQueue();
+		fw = new FolderWatcher(mytempdir, 100);
+		fw.setHashExecutor(executor);
+		fw.initialRun();
+		fw.addListener(q);
+
+		/* renamed: same file key */
+		Assert.assertTrue(new File(dir, "a").renameTo(new File(dir, "c")));
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("dir/a>dir/c:MOVED", q.events.poll());
+		Assert.assertNull(q.events.poll());
+
+		/* a whole folder */
+		File moved = new File(mytempdir, "moved");
+		Assert.assertTrue(dir.renameTo(moved));
+		fw.scan(mytempdir, true);
+		Set<String> events = new HashSet<String>(q.events);
+		Assert.assertEquals(2, events.size());
+		Assert.assertTrue(events.contains("dir/b>moved/b:MOVED"));
+		Assert.assertTrue(events.contains("dir/c>moved/c:MOVED"));
+		q.events.clear();
+
+		/* copied and deleted: different file key, but the same hash */
+		File b = new File(moved, "b");
+		File d = new File(mytempdir, "d");
+		FSService.copyFileAbs(b, d);
+		d.setLastModified(b.lastModified());
+		b.delete();
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("moved/b>" + mytempdir.getName() + "/d:MOVED",
+				q.events.poll());
+		Assert.assertNull(q.events.poll());
+
+		/* same size and time, other content: not a move */
+		File c = new File(moved, "c");
+		File e = new File(mytempdir, "e");
+		writeInFile(e, "eee");
+		e.setLastModified(c.lastModified());
+		c.delete();
+		fw.scan(mytempdir, true);
+		Assert.assertEquals("e:CREATED", q.events.poll());
+		Assert.assertEquals("c:DELETED", q.events.poll());
+		Assert.assertNull(q.events.poll());
+
+		fw.cancel();
+	}
+
 	@Override
 	@After
 	public void tearDown() throws Exception {
@@ -0,0 +1,94 @@
+package com.jakeapp.jake.fss;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.jakeapp.jake.test.FSTestCommons;
+
+public class HashCacheTest {
+
+	private static final long OLD = System.currentTimeMillis() - 60000;
+
+	private final HashValue hash = new HashValue(new byte[] { 1, 2, 3, 4 });
+
+	@Test
+	public void testStatValidation() {
+		HashCache cache = new HashCache(10);
+		cache.put("a", 5, OLD, "inode1", hash);
+		Assert.assertEquals(hash, cache.get("a", 5, OLD, "inode1"));
+		Assert.assertNull(cache.get("a", 6, OLD, "inode1"));
+		Assert.assertNull(cache.get("a", 5, OLD + 1, "inode1"));
+		Assert.assertNull(cache.get("a", 5, OLD, "inode2"));
+		Assert.assertNull(cache.get("b", 5, OLD, "inode1"));
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(4, cache.getMisses());
+	}
+
+	@Test
+	public void testRecentFilesNotCached() {
+		HashCache cache = new HashCache(10);
+		long now = System.currentTimeMillis();
+		cache.put("a", 5, now, null, hash);
+		Assert.assertNull(cache.get("a", 5, now, null));
+	}
+
+	@Test
+	public void testEviction() {
+		HashCache cache = new HashCache(2);
+		cache.put("a", 1, OLD, null, hash);
+		cache.put("b", 1, OLD, null, hash);
+		cache.get("a", 1, OLD, null);
+		cache.put("c", 1, OLD, null, hash);
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertNotNull(cache.get("a", 1, OLD, null));
+		Assert.assertNull(cache.get("b", 1, OLD, null));
+	}
+
+	@Test
+	public void testDiskTier() throws Exception {
+		File dir = Files.createTempDirectory("hashcache").toFile();
+		try {
+			new HashCache(10, dir).put("a", 5, OLD, "inode1", hash);
+
+			HashCache cache = new HashCache(10, dir);
+			Assert.assertEquals(hash, cache.get("a", 5, OLD, "inode1"));
+			Assert.assertNull(cache.get("a", 5, OLD + 1, "inode1"));
+
+			cache.remove("a");
+			Assert.assertNull(new HashCache(10, dir).get("a", 5, OLD,
+					"inode1"));
+		} finally {
+			FSTestCommons.recursiveDelete(dir);
+		}
+	}
+
+	@Test
+	public void testBrokenDiskEntry() throws Exception {
+		File dir = Files.createTempDirectory("hashcache").toFile();
+		try {
+			new HashCache(10, dir).put("a", 5, OLD, "inode1", hash);
+			File entry = dir.listFiles()[0].listFiles()[0];
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					entry));
+			out.writeUTF("a");
+			out.writeLong(5);
+			out.writeLong(OLD);
+			out.writeUTF("inode1");
+			out.writeUTF(HashValue.DIGEST);
+			out.writeShort(-1);
+			out.close();
+
+			Assert.assertNull(new HashCache(10, dir).get("a", 5, OLD,
+					"inode1"));
+			Assert.assertFalse(entry.exists());
+		} finally {
+			FSTestCommons.recursiveDelete(dir);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashTreeTest {
+
+	private static final int CHUNK = 1000;
+
+	private File file;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("hashtree", ".bin");
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdown();
+		file.delete();
+	}
+
+	private void write(byte[] content) throws Exception {
+		Files.write(file.toPath(), content);
+	}
+
+	private byte[] random(int size) {
+		byte[] b = new byte[size];
+		new Random(size).nextBytes(b);
+		return b;
+	}
+
+	private void assertFresh(HashTree tree) throws Exception {
+		HashTree fresh = HashTree.calculate(file, CHUNK, null);
+		Assert.assertEquals(fresh.getLength(), tree.getLength());
+		Assert.assertEquals(fresh.getLeaves(), tree.getLeaves());
+		Assert.assertEquals(fresh.getRoot(), tree.getRoot());
+	}
+
+	@Test
+	public void testParallelMatchesSequential() throws Exception {
+		write(random(10500));
+		HashTree tree = HashTree.calculate(file, CHUNK, executor);
+		Assert.assertEquals(11, tree.getLeaves().size());
+		assertFresh(tree);
+	}
+
+	@Test
+	public void testEmptyFile() throws Exception {
+		write(new byte[0]);
+		HashTree tree = HashTree.calculate(file, CHUNK, null);
+		Assert.assertEquals(1, tree.getLeaves().size());
+		Assert.assertNotNull(tree.getRoot());
+	}
+
+	@Test
+	public void testAppend() throws Exception {
+		byte[] content = random(5500);
+		write(Arrays.copyOf(content, 2500));
+		HashTree tree = HashTree.calculate(file, CHUNK, executor);
+		HashTree before = HashTree.calculate(file, CHUNK, null);
+
+		write(content);
+		tree.append(file, executor);
+		assertFresh(tree);
+		Assert.assertEquals(Arrays.asList(2, 3, 4, 5), tree
+				.getChangedChunks(before));
+	}
+
+	@Test
+	public void testModifiedRange() throws Exception {
+		write(random(5500));
+		HashTree tree = HashTree.calculate(file, CHUNK, null);
+		HashTree before = HashTree.calculate(file, CHUNK, null);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(1999);
+		raf.write(new byte[] { 1, 2 });
+		raf.close();
+		tree.update(file, 1999, 2001, executor);
+		assertFresh(tree);
+		Assert.assertEquals(Arrays.asList(1, 2), tree.getChangedChunks(before));
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+		write(random(5500));
+		HashTree tree = HashTree.calculate(file, CHUNK, null);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(3200);
+		raf.close();
+		tree.update(file, 0, 0, null);
+		assertFresh(tree);
+		Assert.assertEquals(4, tree.getLeaves().size());
+	}
+}
@@ -0,0 +1,75 @@
+package com.jakeapp.jake.fss;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class RelpathValidatorTest {
+
+	/**
+	 * the regex implementation of FSService.isValidRelpath this replaced
+	 */
+	static boolean isValidRelpathRegex(String relpath) {
+		String regex = "[A-Z a-z0-9\\-+_./\\(\\)]+";
+		Pattern p = Pattern.compile(regex);
+		Matcher m = p.matcher(relpath);
+
+		if (!(m.find() && m.start() == 0 && m.end() == relpath.length())) {
+			return false;
+		}
+		return !(relpath.contains("/../") || relpath.startsWith("../")
+				|| relpath.endsWith("/..") || relpath.equals(".."));
+	}
+
+	/**
+	 * mostly dots and slashes, so ".." segments come up often
+	 */
+	private static final String ALPHABET = "..../// aZ09-+_()\\:*?\t\n~%\u00e4\u20ac";
+
+	static String randomPath(Random r, int maxLength) {
+		int len = r.nextInt(maxLength + 1);
+		StringBuilder sb = new StringBuilder(len);
+		for (int i = 0; i < len; i++) {
+			if (r.nextInt(50) == 0)
+				sb.append((char) r.nextInt(Character.MAX_VALUE));
+			else
+				sb.append(ALPHABET.charAt(r.nextInt(ALPHABET.length())));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testExamples() {
+		String[] valid = { "a", "/", "foo/bar", "/foo/bar/", "a b(1).txt",
+				"...", ".", "./a", "a/..b", "a/b..", "..a/b", ".../a" };
+		String[] invalid = { "", "..", "../", "/..", "a/../b", "a/..",
+				"../a", "a:b", "a\\b", "\u00e4", "a\tb", "//../" };
+		for (String s : valid)
+			Assert.assertTrue(s, RelpathValidator.isValid(s));
+		for (String s : invalid)
+			Assert.assertFalse(s, RelpathValidator.isValid(s));
+	}
+
+	@Test
+	public void testSameAsRegex() {
+		Random r = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			String s = randomPath(r, 12);
+			Assert.assertEquals("'" + s + "'", isValidRelpathRegex(s),
+					RelpathValidator.isValid(s));
+		}
+	}
+
+	@Test
+	public void testAllCharacters() {
+		for (char c = 0; c < Character.MAX_VALUE; c++) {
+			String s = "a" + c + "b";
+			Assert.assertEquals("char " + (int) c, isValidRelpathRegex(s),
+					RelpathValidator.isValid(s));
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.jakeapp.jake.fss;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+
+/**
+ * Measures the throughput of the {@link ContentDefinedChunker} and its
+ * deduplication on a synthetic corpus: a random file and edited versions of
+ * it (small insertions, deletions and overwrites at random positions).
+ * <p>
+ * Usage: RunChunkerBenchmark [file size in bytes] [versions] [edits per
+ * version], defaults to 64 MB, 10 and 20. Everything is kept in memory, so
+ * the disk is not measured.
+ * </p>
+ */
+@Ignore
+public class RunChunkerBenchmark {
+
+	private static final Logger log = Logger
+			.getLogger(RunChunkerBenchmark.class);
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0])
+				: 64 * 1024 * 1024;
+		int versions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int edits = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		Random r = new Random(42);
+		byte[][] corpus = new byte[versions][];
+		corpus[0] = new byte[size];
+		r.nextBytes(corpus[0]);
+		for (int v = 1; v < versions; v++)
+			corpus[v] = edit(corpus[v - 1], edits, r);
+
+		ContentDefinedChunker chunker = new ContentDefinedChunker();
+		/* warm up */
+		chunker.chunk(new ByteArrayInputStream(corpus[0]));
+
+		Set<HashValue> unique = new HashSet<HashValue>();
+		long total = 0, stored = 0, chunks = 0;
+		long t = System.nanoTime();
+		for (byte[] version : corpus) {
+			List<Chunk> list = chunker.chunk(new ByteArrayInputStream(version));
+			for (Chunk c : list) {
+				if (unique.add(c.getHash()))
+					stored += c.getLength();
+			}
+			total += version.length;
+			chunks += list.size();
+		}
+		long nanos = System.nanoTime() - t;
+
+		log.info(String.format("%d versions of %d bytes: %.1f MB/s, "
+				+ "%d chunks (average %d bytes), dedup ratio %.2f "
+				+ "(%d of %d bytes stored)", versions, size, total / 1e6
+				/ (nanos / 1e9), chunks, total / Math.max(1, chunks),
+				(double) total / stored, stored, total));
+	}
+
+	private static byte[] edit(byte[] content, int edits, Random r) {
+		byte[] result = content;
+		for (int i = 0; i < edits; i++) {
+			int pos = r.nextInt(result.length);
+			int len = 1 + r.nextInt(100);
+			byte[] next;
+			switch (r.nextInt(3)) {
+			case 0: /* insert */
+				next = new byte[result.length + len];
+				System.arraycopy(result, 0, next, 0, pos);
+				for (int j = 0; j < len; j++)
+					next[pos + j] = (byte) r.nextInt();
+				System.arraycopy(result, pos, next, pos + len, result.length
+						- pos);
+				break;
+			case 1: /* delete */
+				len = Math.min(len, result.length - pos);
+				next = new byte[result.length - len];
+				System.arraycopy(result, 0, next, 0, pos);
+				System.arraycopy(result, pos + len, next, pos, result.length
+						- pos - len);
+				break;
+			default: /* overwrite */
+				next = result.clone();
+				for (int j = pos; j < Math.min(pos + len, next.length); j++)
+					next[j] = (byte) r.nextInt();
+			}
+			result = next;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,103 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+
+/**
+ * Measures the cost of one polling scan against the size of the tree.
+ * <p>
+ * Usage: RunFolderWatcherBenchmark [number of files ...], defaults to 1k,
+ * 10k, 100k and 1M files. Creates the files (empty, 100 per folder) in the
+ * temporary directory.
+ * </p>
+ */
+@Ignore
+public class RunFolderWatcherBenchmark {
+
+	private static final Logger log = Logger
+			.getLogger(RunFolderWatcherBenchmark.class);
+
+	private static final int FILES_PER_FOLDER = 100;
+
+	private static final int SCANS = 5;
+
+	public static void main(String[] args) throws Exception {
+		Logger.getRootLogger().setLevel(Level.INFO);
+		int[] sizes = { 1000, 10000, 100000, 1000000 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		for (int n : sizes) {
+			File dir = Files.createTempDirectory("fsbench").toFile();
+			try {
+				createTree(dir, n);
+				/* let the folder timestamps age, see FolderIndex */
+				Thread.sleep(FolderIndex.TIMESTAMP_GRANULARITY + 1000);
+				run(dir, n, false);
+				run(dir, n, true);
+			} finally {
+				delete(dir);
+			}
+		}
+	}
+
+	private static void createTree(File dir, int n) throws IOException {
+		for (int i = 0; i < n; i++) {
+			File folder = new File(dir, "d" + (i / FILES_PER_FOLDER / 100)
+					+ File.separator + "d" + (i / FILES_PER_FOLDER));
+			folder.mkdirs();
+			new File(folder, "f" + i).createNewFile();
+		}
+	}
+
+	/* FSTestCommons.recursiveDelete is too slow for a million files */
+	private static void delete(File dir) throws IOException {
+		Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e)
+					throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static void run(File dir, int n, boolean trustFolderTimestamps)
+			throws Exception {
+		FolderWatcher fw = new FolderWatcher(dir, Long.MAX_VALUE);
+		fw.setTrustFolderTimestamps(trustFolderTimestamps);
+		long t = System.nanoTime();
+		fw.initialRun();
+		long initial = System.nanoTime() - t;
+
+		t = System.nanoTime();
+		for (int i = 0; i < SCANS; i++)
+			fw.scan(dir, true);
+		long perScan = (System.nanoTime() - t) / SCANS;
+		fw.cancel();
+
+		log.info(String.format("%8d files%s: initial run %8.1f ms, "
+				+ "scan %8.1f ms (%.2f us/file)", n,
+				trustFolderTimestamps ? " (trusting folders)" : "",
+				initial / 1e6, perScan / 1e6, perScan / 1e3 / n));
+	}
+}
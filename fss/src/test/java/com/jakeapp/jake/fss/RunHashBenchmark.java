@@ -0,0 +1,93 @@
+package com.jakeapp.jake.fss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+
+/**
+ * Compares the old stream hashing (DigestInputStream, 1 KiB buffer) with the
+ * channel based {@link StreamFileHashCalculator}.
+ * <p>
+ * Usage: RunHashBenchmark [file size in bytes ...], defaults to 4 KB, 1 MB,
+ * 100 MB and 4 GB. The test files are written to the temporary directory.
+ * </p>
+ */
+@Ignore
+public class RunHashBenchmark {
+
+	private static final Logger log = Logger.getLogger(RunHashBenchmark.class);
+
+	/* read at least this much per measurement, so small files are measurable */
+	private static final long MIN_BYTES = 256L * 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		long[] sizes = { 4L * 1024, 1024L * 1024, 100L * 1024 * 1024,
+				4L * 1024 * 1024 * 1024 };
+		if (args.length > 0) {
+			sizes = new long[args.length];
+			for (int i = 0; i < args.length; i++)
+				sizes[i] = Long.parseLong(args[i]);
+		}
+		StreamFileHashCalculator hasher = new StreamFileHashCalculator();
+		for (long size : sizes) {
+			File f = File.createTempFile("fsshash", ".bin");
+			try {
+				write(f, size);
+				int reps = (int) Math.max(1, MIN_BYTES / size);
+				/* warm up, and fill the page cache */
+				oldStreamHash(f);
+				hasher.calculateHash(f);
+
+				long t = System.nanoTime();
+				for (int i = 0; i < reps; i++)
+					oldStreamHash(f);
+				long stream = System.nanoTime() - t;
+
+				t = System.nanoTime();
+				for (int i = 0; i < reps; i++)
+					hasher.calculateHash(f);
+				long channel = System.nanoTime() - t;
+
+				log.info(String.format("%12d bytes: stream %8.1f MB/s, "
+						+ "channel %8.1f MB/s", size, mbps(size * reps,
+						stream), mbps(size * reps, channel)));
+			} finally {
+				f.delete();
+			}
+		}
+	}
+
+	private static double mbps(long bytes, long nanos) {
+		return bytes / 1e6 / (nanos / 1e9);
+	}
+
+	private static void write(File f, long size) throws IOException {
+		byte[] buf = new byte[1024 * 1024];
+		new Random(size).nextBytes(buf);
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			for (long written = 0; written < size; written += buf.length)
+				out.write(buf, 0, (int) Math.min(buf.length, size - written));
+		} finally {
+			out.close();
+		}
+	}
+
+	/* what StreamFileHashCalculator used to do */
+	private static byte[] oldStreamHash(File f) throws Exception {
+		MessageDigest md = MessageDigest.getInstance(HashValue.DIGEST);
+		InputStream is = new DigestInputStream(new FileInputStream(f), md);
+		byte[] tmp = new byte[1024];
+		while (is.read(tmp) >= 0);
+		is.close();
+		return md.digest();
+	}
+}
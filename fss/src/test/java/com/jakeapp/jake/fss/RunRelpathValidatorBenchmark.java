@@ -0,0 +1,62 @@
+package com.jakeapp.jake.fss;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.junit.Ignore;
+
+/**
+ * Compares {@link RelpathValidator} with the regex implementation it
+ * replaced, on typical valid paths and on random (mostly invalid) input.
+ * <p>
+ * Usage: RunRelpathValidatorBenchmark [iterations], defaults to 5000000.
+ * </p>
+ */
+@Ignore
+public class RunRelpathValidatorBenchmark {
+
+	private static final Logger log = Logger
+			.getLogger(RunRelpathValidatorBenchmark.class);
+
+	private static final String[] TYPICAL = { "readme.txt",
+			"src/main/java/com/jakeapp/jake/fss/FSService.java",
+			"pictures/2008/Holiday (1).jpg", "a/b/c/d/e/f/g/h/i/j/k/l",
+			"docs/release notes-1.0+patch_2.pdf" };
+
+	/* keeps the JIT from removing the loops */
+	private static int sink;
+
+	public static void main(String[] args) throws Exception {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+
+		Random r = new Random(42);
+		String[] random = new String[1024];
+		for (int i = 0; i < random.length; i++)
+			random[i] = RelpathValidatorTest.randomPath(r, 40);
+
+		for (int round = 0; round < 3; round++) {
+			boolean report = round == 2; /* the first rounds warm up */
+			run("regex, typical", TYPICAL, n, true, report);
+			run("table, typical", TYPICAL, n, false, report);
+			run("regex, random", random, n, true, report);
+			run("table, random", random, n, false, report);
+		}
+	}
+
+	private static void run(String name, String[] paths, int n,
+			boolean regex, boolean report) {
+		int valid = 0;
+		long t = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			String s = paths[i % paths.length];
+			if (regex ? RelpathValidatorTest.isValidRelpathRegex(s)
+					: RelpathValidator.isValid(s))
+				valid++;
+		}
+		long nanos = System.nanoTime() - t;
+		sink += valid;
+		if (report)
+			log.info(String.format("%s: %.1f ns/call (%d of %d valid)", name,
+					(double) nanos / n, valid, n));
+	}
+}
@@ -0,0 +1,87 @@
+package com.jakeapp.jake.fss;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class StreamFileHashCalculatorTest {
+
+	private static final int THREADS = 8;
+
+	private static final int ROUNDS = 200;
+
+	@Test
+	public void testConcurrentHashing() throws Exception {
+		Random r = new Random(42);
+		final byte[][] contents = new byte[50][];
+		final HashValue[] expected = new HashValue[contents.length];
+		for (int i = 0; i < contents.length; i++) {
+			contents[i] = new byte[r.nextInt(100000)];
+			r.nextBytes(contents[i]);
+			expected[i] = new HashValue(MessageDigest.getInstance(
+					HashValue.DIGEST).digest(contents[i]));
+		}
+
+		final StreamFileHashCalculator hasher = new StreamFileHashCalculator();
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int offset = t;
+				results.add(executor.submit(new Callable<Integer>() {
+
+					public Integer call() throws Exception {
+						int mismatches = 0;
+						for (int i = 0; i < ROUNDS; i++) {
+							int j = (i + offset) % contents.length;
+							HashValue h = hasher
+									.calculateHash(new ByteArrayInputStream(
+											contents[j]));
+							if (!expected[j].equals(h))
+								mismatches++;
+						}
+						return mismatches;
+					}
+				}));
+			}
+			for (Future<Integer> f : results)
+				Assert.assertEquals("digest mismatches", 0, f.get().intValue());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testFileStrategies() throws Exception {
+		byte[] content = new byte[3 * StreamFileHashCalculator.BUFFER_SIZE + 17];
+		new Random(1).nextBytes(content);
+		File f = File.createTempFile("fss", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(f);
+			out.write(content);
+			out.close();
+
+			StreamFileHashCalculator hasher = new StreamFileHashCalculator();
+			HashValue expected = hasher
+					.calculateHash(new ByteArrayInputStream(content));
+			Assert.assertEquals("buffered", expected, hasher.calculateHash(f));
+			hasher.setMapThreshold(0);
+			Assert.assertEquals("mapped", expected, hasher.calculateHash(f));
+		} finally {
+			System.gc(); /* windows: release the mapping */
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.jakeapp.jake.fss;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.jakeapp.jake.fss.exceptions.HashMismatchException;
+
+public class VerifyingInputStreamTest {
+
+	private final byte[] content = "some content to be verified".getBytes();
+
+	private HashValue hash(byte[] b) throws Exception {
+		return new HashValue(MessageDigest.getInstance(HashValue.DIGEST)
+				.digest(b));
+	}
+
+	private void readAll(InputStream in) throws Exception {
+		byte[] buf = new byte[5];
+		while (in.read(buf) >= 0);
+		/* reading again stays at the end */
+		Assert.assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testMatch() throws Exception {
+		readAll(new VerifyingInputStream(new ByteArrayInputStream(content),
+				hash(content), "x"));
+	}
+
+	@Test
+	public void testSkippedBytesAreVerified() throws Exception {
+		InputStream in = new VerifyingInputStream(new ByteArrayInputStream(
+				content), hash(content), "x");
+		Assert.assertEquals(10, in.skip(10));
+		readAll(in);
+	}
+
+	@Test
+	public void testSkipNothing() throws Exception {
+		InputStream in = new VerifyingInputStream(new ByteArrayInputStream(
+				content), hash(content), "x");
+		Assert.assertEquals(0, in.skip(0));
+		Assert.assertEquals(0, in.skip(-1));
+		readAll(in);
+	}
+
+	@Test
+	public void testMismatch() throws Exception {
+		HashValue expected = hash("other".getBytes());
+		try {
+			readAll(new VerifyingInputStream(
+					new ByteArrayInputStream(content), expected, "x"));
+			Assert.fail("HashMismatchException");
+		} catch (HashMismatchException e) {
+			Assert.assertEquals(expected, e.getExpected());
+			Assert.assertEquals(hash(content), e.getActual());
+		}
+	}
+}